@@ -0,0 +1,69 @@
+// A channel that appends to an open file (see FileHandle.appendChannel()).
+//
+// Written bytes are collected in a buffer holding the file's last,
+// partial block; each block is written to the disk once, when it is
+// full.  Data blocks are reserved in batches of growing size (see
+// FreeBlock.ReserveExtents()), in memory only, and the inode (size and
+// block map) is written only by flush() and close(): the transaction that
+// writes it allocates the blocks it maps in the bitmap, and close() hands
+// back the blocks that were reserved but not used.  Bulk ingest therefore
+// costs a few metadata transactions per file instead of one per write.
+//
+// Until flush() is called the appended bytes are not part of the file:
+// reads do not see them, and a crash loses them.  Their blocks were never
+// allocated on the disk, so the crash leaks none.  The file must not be
+// written by other means while the channel is open.
+
+import java.util.*;
+import java.lang.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.io.*;
+
+
+abstract class AppendChannel implements WritableByteChannel {
+
+  /**
+   * Write the appended bytes and make them part of the file.
+   *
+   * Effects:
+   * 1. The partial last block is written
+   * 2. The inode's size and block map are updated in one transaction
+   *
+   * throws IOException if:
+   * 1. The file no longer exists
+   * 2. There is a write error
+   *
+   * @throws IOException
+   */
+  abstract public void flush() throws IOException;
+
+  /**
+   * Return = an OutputStream that writes to this channel; its flush() and
+   *          close() are the channel's
+   *
+   * @return
+   */
+  public OutputStream stream() {
+    return new OutputStream() {
+      public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+      };
+
+      public void write(byte buf[], int off, int len) throws IOException {
+        ByteBuffer src = ByteBuffer.wrap(buf, off, len);
+        while(src.hasRemaining()) {
+          AppendChannel.this.write(src);
+        };
+      };
+
+      public void flush() throws IOException {
+        AppendChannel.this.flush();
+      };
+
+      public void close() throws IOException {
+        AppendChannel.this.close();
+      };
+    };
+  };
+};
@@ -0,0 +1,392 @@
+// Write-back buffer cache that sits between the Disk and its BlockDevice.
+// A fixed number of frames hold recently used blocks.  Writes only update
+// the frame and mark it dirty; dirty frames reach the device when they are
+// evicted or when flush() is called.  Victims are picked with the CLOCK
+// algorithm: the hand sweeps the frames, clearing reference bits, and
+// evicts the first frame whose bit is already clear.
+//
+// Metadata frames cooperate with the Journal: a frame written by an open
+// transaction is pinned (never evicted or written back) until the
+// transaction commits, and a committed frame is only written back once
+// the journal is durable up to the frame's LSN.
+
+import java.util.*;
+import java.io.*;
+import java.nio.*;
+
+class BlockCache {
+  private BlockDevice device;         // Where blocks come from and go back to
+  private int blockSize;
+  private byte frames[][];            // Cached block contents
+  private int blockOf[];              // Block held by each frame (-1 = empty)
+  private boolean dirty[];            // Frame differs from the device
+  private boolean referenced[];       // CLOCK reference bits
+  private int pins[];                 // Open transactions that wrote the frame
+  private long lsn[];                 // Journal LSN that must be durable first
+  private HashMap<Integer, Integer> frameOf;  // block -> frame
+  private int hand;                   // CLOCK hand
+  public Journal journal;             // Write-ahead log (null if none)
+
+  // Statistics
+  public long hits;
+  public long misses;
+  public long evictions;
+  public long writeBacks;
+
+  /**
+   * Create a cache over <dev> that holds at most <budget> bytes of blocks
+   * (and at least one block).
+   *
+   * @param dev
+   * @param budget
+   */
+  public BlockCache(BlockDevice dev, long budget) {
+    device = dev;
+    blockSize = dev.blockSize();
+    int n = (int) Math.max(1, Math.min(budget / blockSize, dev.numBlocks()));
+    frames = new byte[n][];
+    blockOf = new int[n];
+    dirty = new boolean[n];
+    referenced = new boolean[n];
+    pins = new int[n];
+    lsn = new long[n];
+    frameOf = new HashMap<Integer, Integer>(2 * n);
+    Arrays.fill(blockOf, -1);
+    hand = 0;
+  };
+
+  /**
+   * Return = the number of frames in the cache
+   *
+   * @return
+   */
+  public int capacity() {
+    return frames.length;
+  };
+
+  /**
+   * Copy block <block> into buf[off ... off+blockSize-1], fetching it
+   * from the device on a miss.
+   *
+   * throws IOException if:
+   * 1. The block or an evicted dirty block cannot be transferred
+   *
+   * @param block
+   * @param buf
+   * @param off
+   * @throws IOException
+   */
+  public synchronized void read(int block, byte buf[], int off) throws IOException {
+    System.arraycopy(frames[lookup(block, true)], 0, buf, off, blockSize);
+  };
+
+  /**
+   * Copy the <count> blocks that start at <block> into <buf>.  Blocks
+   * that are cached are copied from their frames; each run of blocks that
+   * is not cached is fetched with one device request and is not added to
+   * the cache, so bulk reads do not push out the working set.
+   *
+   * throws IOException if:
+   * 1. There is a read error
+   *
+   * @param block
+   * @param count
+   * @param buf
+   * @param off
+   * @throws IOException
+   */
+  public synchronized void read(int block, int count, byte buf[], int off) throws IOException {
+    int missing = 0;
+    for(int i = 0; i <= count; ++i) {
+      Integer f = i < count ? frameOf.get(block + i) : null;
+      if(f == null && i < count) {
+        missing++;
+        continue;
+      };
+      if(missing > 0) {
+        device.read(block + i - missing, missing, buf, off + (i - missing) * blockSize);
+        misses += missing;
+        missing = 0;
+      };
+      if(f != null) {
+        System.arraycopy(frames[f], 0, buf, off + i * blockSize, blockSize);
+        referenced[f] = true;
+        hits++;
+      };
+    };
+  };
+
+  /**
+   * Copy bytes into <dst>, starting <skip> bytes into block <block>, until
+   * <dst> is full.  Cached blocks are copied from their frames; each run
+   * of blocks that is not cached is read by the device straight into
+   * <dst>, and is not added to the cache.
+   *
+   * throws IOException if:
+   * 1. There is a read error
+   *
+   * @param block
+   * @param skip
+   * @param dst
+   * @throws IOException
+   */
+  public synchronized void read(int block, int skip, ByteBuffer dst) throws IOException {
+    while(dst.hasRemaining()) {
+      Integer f = frameOf.get(block);
+      if(f != null) {
+        dst.put(frames[f], skip, Math.min(blockSize - skip, dst.remaining()));
+        referenced[f] = true;
+        hits++;
+        block++;
+        skip = 0;
+        continue;
+      };
+      int run = 1;
+      long bytes = blockSize - skip;
+      while(bytes < dst.remaining() && !frameOf.containsKey(block + run)) {
+        run++;
+        bytes += blockSize;
+      };
+      ByteBuffer part = dst.duplicate();
+      part.limit((int) Math.min(dst.limit(), dst.position() + bytes));
+      device.read(block, skip, part);
+      dst.position(part.position());
+      misses += run;
+      block += run;
+      skip = 0;
+    };
+  };
+
+  /**
+   * Return = the number of blocks, starting with <block> and at most
+   *          <max>, whose device copy is up to date (they are not cached,
+   *          or their frame is clean)
+   *
+   * @param block
+   * @param max
+   * @return
+   */
+  public synchronized int clean(int block, int max) {
+    int n = 0;
+    while(n < max) {
+      Integer f = frameOf.get(block + n);
+      if(f != null && dirty[f]) {
+        break;
+      };
+      n++;
+    };
+    return n;
+  };
+
+  /**
+   * Replace the contents of block <block> with buf[off ... off+blockSize-1].
+   * The device is not touched until the frame is evicted or flushed.
+   *
+   * throws IOException if:
+   * 1. An evicted dirty block cannot be written back
+   *
+   * @param block
+   * @param buf
+   * @param off
+   * @throws IOException
+   */
+  public synchronized void write(int block, byte buf[], int off) throws IOException {
+    write(block, buf, off, false);
+  };
+
+  /**
+   * Replace the contents of block <block>, and if <pin> is set, pin the
+   * frame on behalf of an open transaction until unpin() is called.
+   *
+   * throws IOException if:
+   * 1. An evicted dirty block cannot be written back
+   *
+   * @param block
+   * @param buf
+   * @param off
+   * @param pin
+   * @throws IOException
+   */
+  public synchronized void write(int block, byte buf[], int off, boolean pin) throws IOException {
+    int f = lookup(block, false);
+    System.arraycopy(buf, off, frames[f], 0, blockSize);
+    dirty[f] = true;
+    if(pin) {
+      pins[f]++;
+    };
+  };
+
+  /**
+   * Release a pin taken by write(), recording that the frame may only be
+   * written back once the journal is durable up to <l>.
+   *
+   * @param block
+   * @param l
+   */
+  public synchronized void unpin(int block, long l) {
+    Integer f = frameOf.get(block);
+    if(f != null && pins[f] > 0) {
+      pins[f]--;
+      lsn[f] = Math.max(lsn[f], l);
+    };
+  };
+
+  /**
+   * Return = a copy of the cached contents of block <block>
+   *        = null if the block is not cached (the device copy is current)
+   *
+   * @param block
+   * @return
+   */
+  public synchronized byte[] peek(int block) {
+    Integer f = frameOf.get(block);
+    return f == null ? null : frames[f].clone();
+  };
+
+  /**
+   * Undo the writes of a transaction that does not commit: block <block>
+   * gets back the contents <image> returned by peek() before its first
+   * write, or is dropped if <image> is null, and the pin taken by write()
+   * is released.
+   *
+   * @param block
+   * @param image
+   */
+  public synchronized void restore(int block, byte image[]) {
+    Integer f = frameOf.get(block);
+    if(f == null) {
+      return;
+    };
+    if(pins[f] > 0) {
+      pins[f]--;
+    };
+    if(image != null) {
+      System.arraycopy(image, 0, frames[f], 0, blockSize);
+    }else if(pins[f] == 0) {
+      frameOf.remove(block);
+      blockOf[f] = -1;
+      dirty[f] = false;
+      lsn[f] = 0;
+    };
+  };
+
+  /**
+   * Forget block <block> without writing it back, unless an open
+   * transaction has pinned it.  Used for blocks that have been freed.
+   *
+   * @param block
+   */
+  public synchronized void drop(int block) {
+    Integer f = frameOf.get(block);
+    if(f != null && pins[f] == 0) {
+      frameOf.remove(block);
+      blockOf[f] = -1;
+      dirty[f] = false;
+      lsn[f] = 0;
+    };
+  };
+
+  /**
+   * Write every dirty frame back to the device, in block order so that
+   * neighbouring blocks are written sequentially.
+   *
+   * throws IOException if:
+   * 1. There is a write error
+   *
+   * @throws IOException
+   */
+  public synchronized void flush() throws IOException {
+    TreeMap<Integer, Integer> order = new TreeMap<Integer, Integer>();
+    for(int f = 0; f < frames.length; ++f) {
+      // Frames of open transactions are written back after they commit
+      if(dirty[f] && pins[f] == 0) {
+        order.put(blockOf[f], f);
+      };
+    };
+    for(int f: order.values()) {
+      writeBack(f);
+    };
+  };
+
+  /**
+   * Return = a one line summary of the cache statistics
+   *
+   * @return
+   */
+  public synchronized String stats() {
+    long total = hits + misses;
+    return "cache: " + frames.length + " frames, " + hits + " hits, " + misses + " misses ("
+        + (total == 0 ? 0 : 100 * hits / total) + "% hit), " + evictions + " evictions, "
+        + writeBacks + " write-backs";
+  };
+
+  /**
+   * Find the frame that holds <block>, claiming one if needed.  <fetch>
+   * is false when the caller is about to overwrite the whole frame, in
+   * which case the device is not read on a miss.
+   */
+  private int lookup(int block, boolean fetch) throws IOException {
+    Integer f = frameOf.get(block);
+    if(f != null) {
+      hits++;
+      referenced[f] = true;
+      return f;
+    };
+
+    misses++;
+    int v = victim();
+    if(frames[v] == null) {
+      frames[v] = new byte[blockSize];
+    };
+    if(fetch) {
+      device.read(block, frames[v], 0);
+    };
+    blockOf[v] = block;
+    referenced[v] = true;
+    frameOf.put(block, v);
+    return v;
+  };
+
+  /**
+   * Pick a frame to (re)use with the CLOCK algorithm, writing it back
+   * first if it is dirty.
+   */
+  private int victim() throws IOException {
+    for(int sweep = 0; sweep < 2 * frames.length + 1; ++sweep) {
+      int f = hand;
+      hand = (hand + 1) % frames.length;
+
+      if(blockOf[f] == -1) {
+        return f;
+      };
+      if(pins[f] > 0) {
+        continue;
+      };
+      if(referenced[f]) {
+        // Second chance
+        referenced[f] = false;
+        continue;
+      };
+
+      if(dirty[f]) {
+        writeBack(f);
+      };
+      frameOf.remove(blockOf[f]);
+      blockOf[f] = -1;
+      evictions++;
+      return f;
+    };
+    throw new IOException("BlockCache: every frame is pinned by an open transaction");
+  };
+
+  private void writeBack(int f) throws IOException {
+    // Write-ahead rule: the log record must reach the disk first
+    if(lsn[f] > 0 && journal != null) {
+      journal.force(lsn[f]);
+    };
+    lsn[f] = 0;
+    device.write(blockOf[f], frames[f], 0);
+    dirty[f] = false;
+    writeBacks++;
+  };
+};
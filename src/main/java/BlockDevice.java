@@ -0,0 +1,213 @@
+// Storage underneath a Disk: a fixed number of fixed size blocks.
+// Implementations decide where the bytes live (a heap array, a file
+// accessed through RandomAccessFile, a FileChannel or a memory mapping);
+// the block classes only ever see blocks through the Disk.
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+interface BlockDevice {
+
+  /**
+   * Return = the number of bytes in each block
+   *
+   * @return
+   */
+  int blockSize();
+
+  /**
+   * Return = the number of blocks on the device
+   *
+   * @return
+   */
+  int numBlocks();
+
+  /**
+   * Read block <block> into buf[off ... off+blockSize-1].  Bytes that
+   * were never written read back as zeros.
+   *
+   * throws IOException if:
+   * 1. There is a read error
+   *
+   * @param block
+   * @param buf
+   * @param off
+   * @throws IOException
+   */
+  void read(int block, byte buf[], int off) throws IOException;
+
+  /**
+   * Read the <count> consecutive blocks that start at <block> into
+   * buf[off ... off+count*blockSize-1].  Devices that can transfer a run
+   * of blocks in one request override this.
+   *
+   * throws IOException if:
+   * 1. There is a read error
+   *
+   * @param block
+   * @param count
+   * @param buf
+   * @param off
+   * @throws IOException
+   */
+  default void read(int block, int count, byte buf[], int off) throws IOException {
+    for(int i = 0; i < count; ++i) {
+      read(block + i, buf, off + i * blockSize());
+    };
+  };
+
+  /**
+   * Copy bytes of the device into <dst>, starting <skip> bytes into block
+   * <block>, until <dst> is full; the position of <dst> advances.  Devices
+   * that can transfer straight into a ByteBuffer override this.
+   *
+   * throws IOException if:
+   * 1. There is a read error
+   *
+   * @param block
+   * @param skip
+   * @param dst
+   * @throws IOException
+   */
+  default void read(int block, int skip, ByteBuffer dst) throws IOException {
+    int count = (skip + dst.remaining() + blockSize() - 1) / blockSize();
+    byte tmp[] = new byte[count * blockSize()];
+    read(block, count, tmp, 0);
+    dst.put(tmp, skip, dst.remaining());
+  };
+
+  /**
+   * Write <length> bytes of the device, starting <skip> bytes into block
+   * <block>, to <target>.  Devices backed by a file override this to let
+   * the operating system move the bytes (see transfer()).
+   *
+   * throws IOException if:
+   * 1. There is a read error or <target> cannot be written
+   *
+   * @param block
+   * @param skip
+   * @param length
+   * @param target
+   * @throws IOException
+   */
+  default void transferTo(int block, int skip, int length, WritableByteChannel target) throws IOException {
+    ByteBuffer buf = ByteBuffer.allocate(length);
+    read(block, skip, buf);
+    buf.flip();
+    while(buf.hasRemaining()) {
+      target.write(buf);
+    };
+  };
+
+  /**
+   * Write bytes <pos> ... <pos>+<length>-1 of the file behind <channel>
+   * to <target> with FileChannel.transferTo(), which copies file to file
+   * (or socket) in the kernel.  Bytes past the end of the file are sent as
+   * zeros.
+   *
+   * throws IOException if:
+   * 1. There is a read error or <target> cannot be written
+   *
+   * @param channel
+   * @param pos
+   * @param length
+   * @param target
+   * @throws IOException
+   */
+  static void transfer(FileChannel channel, long pos, long length, WritableByteChannel target) throws IOException {
+    while(length > 0) {
+      long n = channel.transferTo(pos, length, target);
+      if(n <= 0) {
+        // Past the end of the file
+        ByteBuffer zero = ByteBuffer.allocate((int) Math.min(length, 1 << 16));
+        while(length > 0) {
+          zero.clear();
+          zero.limit((int) Math.min(length, zero.capacity()));
+          while(zero.hasRemaining()) {
+            length -= target.write(zero);
+          };
+        };
+        break;
+      };
+      pos += n;
+      length -= n;
+    };
+  };
+
+  /**
+   * Write buf[off ... off+blockSize-1] to block <block>.  The bytes are
+   * not guaranteed to be durable until flush() returns.
+   *
+   * throws IOException if:
+   * 1. There is a write error
+   *
+   * @param block
+   * @param buf
+   * @param off
+   * @throws IOException
+   */
+  void write(int block, byte buf[], int off) throws IOException;
+
+  /**
+   * Tell the device that the <count> blocks starting at <block> no longer
+   * hold useful data, so that it can release their storage (like TRIM or
+   * punching a hole in a file).
+   *
+   * Return = true if the blocks now read back as zeros
+   *        = false if the device kept them (they must be zeroed by writing)
+   *
+   * @param block
+   * @param count
+   * @return
+   * @throws IOException
+   */
+  default boolean discard(int block, int count) throws IOException {
+    return false;
+  };
+
+  /**
+   * Make every completed write durable.
+   *
+   * @throws IOException
+   */
+  void flush() throws IOException;
+
+  /**
+   * Release the resources held by the device.
+   *
+   * @throws IOException
+   */
+  void close() throws IOException;
+
+  /**
+   * Open a device of kind <kind> backed by <fname>:
+   *   "mem"     - heap arrays only (fname is ignored, nothing persists)
+   *   "raf"     - RandomAccessFile seek + read/write
+   *   "channel" - FileChannel positional reads and writes
+   *   "mmap"    - FileChannel memory mapping
+   *
+   * throws IOException if:
+   * 1. <kind> is unknown
+   * 2. The backing file cannot be opened
+   *
+   * @param kind
+   * @param fname
+   * @param bs
+   * @param nb
+   * @return
+   * @throws IOException
+   */
+  static BlockDevice open(String kind, String fname, int bs, int nb) throws IOException {
+    if(kind.equals("mem")) {
+      return new MemoryBlockDevice(bs, nb);
+    }else if(kind.equals("raf")) {
+      return new RandomAccessFileBlockDevice(fname, bs, nb);
+    }else if(kind.equals("channel")) {
+      return new FileChannelBlockDevice(fname, bs, nb);
+    }else if(kind.equals("mmap")) {
+      return new MappedBlockDevice(fname, bs, nb);
+    };
+    throw new IOException("Unknown block device type (" + kind + ")");
+  };
+};
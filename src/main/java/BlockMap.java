@@ -0,0 +1,555 @@
+// Translation between the blocks of a file and disk blocks, through the
+// direct, single and double indirect pointers of its inode (see Inode).
+// An inline file maps no blocks.  Indirect blocks are read through the
+// disk's PointerCache, and the ones changed by addExtent() are written
+// back by flush().
+//
+// Blocks may be shared with other files (see RefCount): a
+// pointer to a shared block, data or indirect, must not be followed for a
+// write.  Every change goes through own(), which gives the file a private
+// copy of a shared block first; copying an indirect block adds a
+// reference to each block it points to.  Releasing a block only frees it
+// (and, for an indirect block, releases its children) when it was not
+// shared.
+
+import java.util.*;
+import java.io.*;
+
+class BlockMap {
+  private Disk disk;
+  private FreeBlock free_block;       // Source of indirect blocks (null if read only)
+  private Inode inode;
+  private int perBlock;               // Pointers per indirect block
+  private int count;                  // Number of blocks mapped
+  private boolean copied;             // own() has moved a pointer of the inode
+
+  // Indirect blocks changed since the last flush()
+  private LinkedHashMap<Integer, int[]> dirty = new LinkedHashMap<Integer, int[]>();
+
+  /**
+   * Create the block map of <in>.  <fb> is only needed to grow the map.
+   *
+   * @param dsk
+   * @param fb
+   * @param in
+   */
+  public BlockMap(Disk dsk, FreeBlock fb, Inode in) {
+    disk = dsk;
+    free_block = fb;
+    inode = in;
+    perBlock = disk.blockSize / 4;
+    count = countBlocks();
+  };
+
+  /**
+   * Return = the number of data blocks allocated to the file
+   *
+   * @return
+   */
+  public int numBlocks() {
+    return count;
+  };
+
+  /**
+   * Return = the largest number of blocks an inode can map
+   *
+   * @return
+   */
+  public long maxBlocks() {
+    return Inode.NDIRECT + perBlock + (long) perBlock * perBlock;
+  };
+
+  /**
+   * Return = the number of indirect blocks (single and double) that a file
+   *          of <blocks> blocks needs on <dsk>
+   *
+   * @param dsk
+   * @param blocks
+   * @return
+   */
+  static public int indirectBlocks(Disk dsk, long blocks) {
+    int per = dsk.blockSize / 4;
+    if(blocks <= Inode.NDIRECT) {
+      return 0;
+    };
+    blocks -= Inode.NDIRECT;
+    if(blocks <= per) {
+      return 1;
+    };
+    blocks -= per;
+    return 2 + (int) ((blocks + per - 1) / per);
+  };
+
+  /**
+   * Return = the largest size in bytes of a file
+   *
+   * @return
+   */
+  public int maxSize() {
+    return (int) Math.min(Integer.MAX_VALUE, maxBlocks() * disk.blockSize);
+  };
+
+  /**
+   * Return = the disk block that holds block <logical> of the file
+   *
+   * throws FileSystemException if:
+   * 1. An indirect block cannot be read
+   *
+   * @param logical
+   * @return
+   * @throws FileSystemException
+   */
+  public int getBlock(int logical) throws FileSystemException {
+    if(logical < Inode.NDIRECT) {
+      return inode.getBlockPtr(logical);
+    };
+    logical -= Inode.NDIRECT;
+    if(logical < perBlock) {
+      return pointers(inode.getBlockPtr(Inode.INDIRECT))[logical];
+    };
+    logical -= perBlock;
+    int level1[] = pointers(inode.getBlockPtr(Inode.DINDIRECT));
+    return pointers(level1[logical / perBlock])[logical % perBlock];
+  };
+
+  /**
+   * Return = the number of blocks, starting with block <logical> of the
+   *          file and at most <max>, that are stored contiguously on the disk
+   *
+   * throws FileSystemException if:
+   * 1. An indirect block cannot be read
+   *
+   * @param logical
+   * @param max
+   * @return
+   * @throws FileSystemException
+   */
+  public int runLength(int logical, int max) throws FileSystemException {
+    int first = getBlock(logical);
+    int run = 1;
+    while(run < max && logical + run < count && getBlock(logical + run) == first + run) {
+      run++;
+    };
+    return run;
+  };
+
+  /**
+   * Append the extent <start, length> to the end of the map.
+   *
+   * Effects:
+   * 1. The map grows by <length> blocks
+   * 2. Indirect blocks are allocated as needed (they are written by flush())
+   *
+   * throws FileSystemException if:
+   * 1. The inode cannot reference that many blocks
+   * 2. An indirect block cannot be read or allocated
+   *
+   * @param start
+   * @param length
+   * @throws FileSystemException
+   */
+  public void addExtent(int start, int length) throws FileSystemException {
+    if(count + (long) length > maxBlocks()) {
+      throw new FileSystemException("File too long (more than " + maxBlocks() + " blocks).");
+    };
+    for(int j = 0; j < length; ++j) {
+      set(count, start + j);
+    };
+  };
+
+  /**
+   * Write the indirect blocks changed by addExtent(), truncate(),
+   * writable() or replace(), and the reference counts.
+   *
+   * throws FileSystemException if:
+   * 1. There is a write error
+   *
+   * @throws FileSystemException
+   */
+  public void flush() throws FileSystemException {
+    try {
+      for(Map.Entry<Integer, int[]> e: dirty.entrySet()) {
+        disk.pointers.write(e.getKey(), e.getValue());
+      };
+    }catch(IOException e) {
+      throw new FileSystemException("BlockMap::flush(): " + e);
+    };
+    dirty.clear();
+    if(free_block != null) {
+      free_block.flush();
+    };
+  };
+
+  /**
+   * Empty the map.  The blocks must be released separately.
+   *
+   * Effects:
+   * 1. The inode maps no blocks and has size 0
+   *
+   * Return = every block that was used by the file, data and indirect
+   *          blocks alike, as a list of {start, length} extents
+   *
+   * throws FileSystemException if:
+   * 1. An indirect block cannot be read
+   *
+   * @return
+   * @throws FileSystemException
+   */
+  public int[][] clear() throws FileSystemException {
+    ArrayList<int[]> out = new ArrayList<int[]>();
+    if(!inode.isInline()) {
+      // Walk every pointer, so that blocks past the size are released too
+      for(int i = 0; i < Inode.NDIRECT; ++i) {
+        release(out, inode.getBlockPtr(i), 0);
+      };
+      release(out, inode.getBlockPtr(Inode.INDIRECT), 1);
+      release(out, inode.getBlockPtr(Inode.DINDIRECT), 2);
+    };
+
+    inode.clearBlocks();
+    count = 0;
+    dirty.clear();
+    return out.toArray(new int[out.size()][]);
+  };
+
+  /**
+   * Shorten the map to its first <blocks> blocks.
+   *
+   * Effects:
+   * 1. The inode maps <blocks> blocks; the pointers to the others are
+   *    cleared (the changed indirect blocks are written by flush())
+   * 2. Indirect blocks that no longer map anything are released from
+   *    the map
+   *
+   * Return = the blocks that are no longer used, data and indirect blocks
+   *          alike, as a list of {start, length} extents
+   *
+   * throws FileSystemException if:
+   * 1. An indirect block cannot be read
+   *
+   * @param blocks
+   * @return
+   * @throws FileSystemException
+   */
+  public int[][] truncate(int blocks) throws FileSystemException {
+    ArrayList<int[]> out = new ArrayList<int[]>();
+    if(blocks >= count) {
+      return new int[0][];
+    };
+    for(int i = blocks; i < Inode.NDIRECT; ++i) {
+      release(out, inode.getBlockPtr(i), 0);
+      inode.setBlockPtr(i, 0);
+    };
+
+    // Indirect blocks are released whole when their first entry is past
+    // the end, and otherwise lose the entries past the end
+    if(blocks <= Inode.NDIRECT) {
+      release(out, inode.getBlockPtr(Inode.INDIRECT), 1);
+      inode.setBlockPtr(Inode.INDIRECT, 0);
+    }else if(blocks < Inode.NDIRECT + perBlock) {
+      cut(out, ownPtr(Inode.INDIRECT), blocks - Inode.NDIRECT, 0);
+    };
+    int base = Inode.NDIRECT + perBlock;
+    if(inode.getBlockPtr(Inode.DINDIRECT) == 0) {
+      // Nothing there
+    }else if(blocks <= base) {
+      release(out, inode.getBlockPtr(Inode.DINDIRECT), 2);
+      inode.setBlockPtr(Inode.DINDIRECT, 0);
+    }else{
+      int dbl = ownPtr(Inode.DINDIRECT);
+      int j = (blocks - base) / perBlock;
+      int level1[] = pointers(dbl);
+      if((blocks - base) % perBlock != 0 && level1[j] != 0) {
+        cut(out, ownEntry(dbl, j), (blocks - base) % perBlock, 0);
+        j++;
+      };
+      cut(out, dbl, j, 1);
+    };
+
+    count = blocks;
+    return out.toArray(new int[out.size()][]);
+  };
+
+  /**
+   * Return = the disk block that holds block <logical> of the file, which
+   *          is about to be written in place: if it is shared, the file
+   *          first gets its own copy (and so do the indirect blocks on the
+   *          way to it)
+   *
+   * throws FileSystemException if:
+   * 1. An indirect block cannot be read
+   * 2. There is no room for the copies
+   *
+   * @param logical
+   * @return
+   * @throws FileSystemException
+   */
+  public int writable(int logical) throws FileSystemException {
+    if(logical < Inode.NDIRECT) {
+      return ownPtr(logical);
+    };
+    logical -= Inode.NDIRECT;
+    if(logical < perBlock) {
+      return ownEntry(ownPtr(Inode.INDIRECT), logical);
+    };
+    logical -= perBlock;
+    int level2 = ownEntry(ownPtr(Inode.DINDIRECT), logical / perBlock);
+    return ownEntry(level2, logical % perBlock);
+  };
+
+  /**
+   * Point block <logical> of the file, which must be mapped, to disk block
+   * <block> (0 for none).  Shared indirect blocks on the way are copied
+   * first, as for writable(); the changed ones are written by flush().
+   *
+   * Return = the blocks that are no longer used (the old block, unless it
+   *          is shared), as a list of {start, length} extents
+   *
+   * throws FileSystemException if:
+   * 1. An indirect block cannot be read
+   * 2. There is no room for the copies
+   *
+   * @param logical
+   * @param block
+   * @return
+   * @throws FileSystemException
+   */
+  public int[][] replace(int logical, int block) throws FileSystemException {
+    ArrayList<int[]> out = new ArrayList<int[]>();
+    int old;
+    if(logical < Inode.NDIRECT) {
+      old = inode.getBlockPtr(logical);
+      inode.setBlockPtr(logical, block);
+      copied = true;
+    }else{
+      int leaf;
+      logical -= Inode.NDIRECT;
+      if(logical < perBlock) {
+        leaf = ownPtr(Inode.INDIRECT);
+      }else{
+        logical -= perBlock;
+        leaf = ownEntry(ownPtr(Inode.DINDIRECT), logical / perBlock);
+        logical %= perBlock;
+      };
+      int ptrs[] = mutable(leaf);
+      old = ptrs[logical];
+      ptrs[logical] = block;
+    };
+    release(out, old, 0);
+    return out.toArray(new int[out.size()][]);
+  };
+
+  /**
+   * Add a reference to every block the inode points to, which has just
+   * been copied from another inode.
+   *
+   * Return = true if the blocks are shared
+   *        = false if one of them already has the largest number of
+   *          references (nothing is changed)
+   *
+   * @return
+   * @throws FileSystemException
+   */
+  public boolean share() throws FileSystemException {
+    if(inode.isInline()) {
+      return true;
+    };
+    int ptrs[] = new int[Inode.POINTERS];
+    int n = 0;
+    for(int i = 0; i < Inode.POINTERS; ++i) {
+      if(inode.getBlockPtr(i) != 0) {
+        ptrs[n++] = inode.getBlockPtr(i);
+      };
+    };
+    ptrs = Arrays.copyOf(ptrs, n);
+    if(!free_block.refs.canShare(ptrs)) {
+      return false;
+    };
+    for(int b: ptrs) {
+      free_block.refs.share(b);
+    };
+    return true;
+  };
+
+  /**
+   * Return = true if writable(), replace(), addExtent() or truncate()
+   *          have replaced a block pointer of the inode itself (it must
+   *          be written)
+   *
+   * @return
+   */
+  public boolean copied() {
+    return copied;
+  };
+
+  // Clear the entries <from> ... perBlock-1 of indirect block <block>
+  // (which is not shared), releasing the blocks of level <level> they
+  // point to
+  private void cut(ArrayList<int[]> out, int block, int from, int level) throws FileSystemException {
+    int ptrs[] = pointers(block);
+    for(int j = from; j < perBlock; ++j) {
+      if(ptrs[j] != 0) {
+        release(out, ptrs[j], level);
+        ptrs = mutable(block);
+        ptrs[j] = 0;
+      };
+    };
+  };
+
+  // Drop this file's reference to block <block> of level <level> (0 for
+  // a data block, 1 for an indirect block, 2 for a double indirect one),
+  // adding it to <out> if nobody else refers to it
+  private void release(ArrayList<int[]> out, int block, int level) throws FileSystemException {
+    if(block == 0 || (free_block != null && free_block.refs.unshare(block))) {
+      return;
+    };
+    if(level > 0) {
+      for(int b: pointers(block)) {
+        release(out, b, level - 1);
+      };
+      dirty.remove(block);
+      disk.pointers.remove(block);
+    };
+    collect(out, block);
+  };
+
+  // Return = inode pointer <slot>, after replacing a shared block with a
+  //          private copy
+  private int ownPtr(int slot) throws FileSystemException {
+    int block = inode.getBlockPtr(slot);
+    int mine = own(block, slot >= Inode.NDIRECT);
+    if(mine != block) {
+      inode.setBlockPtr(slot, mine);
+      copied = true;
+    };
+    return mine;
+  };
+
+  // Return = entry <i> of indirect block <block> (which is not shared),
+  //          after replacing a shared block with a private copy.  Entries
+  //          of a single indirect block are data blocks, entries of the
+  //          double indirect block are indirect blocks.
+  private int ownEntry(int block, int i) throws FileSystemException {
+    int old = pointers(block)[i];
+    boolean indirect = block == inode.getBlockPtr(Inode.DINDIRECT);
+    int mine = own(old, indirect);
+    if(mine != old) {
+      mutable(block)[i] = mine;
+    };
+    return mine;
+  };
+
+  // Return = <block> if this file is its only user, or else a copy of it
+  //          that replaces this file's reference
+  private int own(int block, boolean indirect) throws FileSystemException {
+    if(block == 0 || !free_block.refs.shared(block)) {
+      return block;
+    };
+    int copy = free_block.AllocExtents(block + 1, 1)[0][0];
+    if(indirect) {
+      int ptrs[] = pointers(block).clone();
+      for(int b: ptrs) {
+        if(b != 0) {
+          free_block.refs.share(b);
+        };
+      };
+      dirty.put(copy, ptrs);
+    }else{
+      byte data[] = new byte[disk.blockSize];
+      try {
+        disk.readBlock(block, data);
+        disk.writeBlock(copy, data);
+      }catch(IOException e) {
+        throw new FileSystemException("BlockMap::own(): " + e);
+      };
+    };
+    free_block.refs.unshare(block);
+    return copy;
+  };
+
+  // Number of blocks mapped by the inode as read from the disk
+  private int countBlocks() {
+    if(inode.isInline()) {
+      return 0;
+    };
+    return (int) ((inode.getSize() + (long) disk.blockSize - 1) / disk.blockSize);
+  };
+
+  // Map block <logical> (the next one) to disk block <block>
+  private void set(int logical, int block) throws FileSystemException {
+    count = logical + 1;
+    if(logical < Inode.NDIRECT) {
+      inode.setBlockPtr(logical, block);
+      return;
+    };
+    logical -= Inode.NDIRECT;
+    if(logical < perBlock) {
+      if(inode.getBlockPtr(Inode.INDIRECT) == 0) {
+        inode.setBlockPtr(Inode.INDIRECT, allocIndirect(block));
+      };
+      int single = ownPtr(Inode.INDIRECT);
+      mutable(single)[logical] = block;
+      return;
+    };
+    logical -= perBlock;
+    if(inode.getBlockPtr(Inode.DINDIRECT) == 0) {
+      inode.setBlockPtr(Inode.DINDIRECT, allocIndirect(block));
+    };
+    int dbl = ownPtr(Inode.DINDIRECT);
+    int i = logical / perBlock;
+    if(pointers(dbl)[i] == 0) {
+      mutable(dbl)[i] = allocIndirect(block);
+    };
+    int level2 = ownEntry(dbl, i);
+    mutable(level2)[logical % perBlock] = block;
+  };
+
+  // Return = a new, empty indirect block close to disk block <goal>
+  private int allocIndirect(int goal) throws FileSystemException {
+    int block = free_block.AllocExtents(goal, 1)[0][0];
+    dirty.put(block, new int[perBlock]);
+    return block;
+  };
+
+  // Return = the pointers of indirect block <block>, which must not be
+  //          changed in place (see mutable())
+  private int[] pointers(int block) throws FileSystemException {
+    int ptrs[] = dirty.get(block);
+    if(ptrs != null) {
+      return ptrs;
+    };
+    try {
+      return disk.pointers.get(block);
+    }catch(IOException e) {
+      throw new FileSystemException("BlockMap::getBlock(): " + e);
+    }
+  };
+
+  // Return = the pointers of indirect block <block>, to be changed.  The
+  //          array held by the PointerCache is copied first, so that the
+  //          cache keeps the pointers on the disk until flush() writes the
+  //          new ones.
+  private int[] mutable(int block) throws FileSystemException {
+    int ptrs[] = dirty.get(block);
+    if(ptrs == null) {
+      ptrs = pointers(block).clone();
+      dirty.put(block, ptrs);
+    };
+    return ptrs;
+  };
+
+  // Add block <b> (if any) to the extent list <out>
+  private void collect(ArrayList<int[]> out, int b) {
+    if(b == 0) {
+      return;
+    };
+    if(!out.isEmpty()) {
+      int last[] = out.get(out.size() - 1);
+      if(last[0] + last[1] == b) {
+        last[1]++;
+        return;
+      };
+    };
+    out.add(new int[]{b, 1});
+  };
+};
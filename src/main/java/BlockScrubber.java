@@ -0,0 +1,120 @@
+// Background scrubbing of freed blocks.
+// Deallocation only updates the free space bitmap.  When scrubbing is
+// enabled, the freed extents are queued here and a daemon thread erases
+// them at a bounded rate: each block is discarded on the device (a
+// TRIM-style hole where the device supports it) or overwritten with
+// zeros.  A block is only touched while it is still free, under the lock
+// of its allocation group, so a block that has been reallocated in the
+// meantime is left alone.  Extents freed by a journal transaction are not
+// scrubbed before that transaction is durable.
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+
+class BlockScrubber implements Runnable {
+  private Disk disk;
+  private FreeBlock free_block;
+  private int rate;                   // Blocks scrubbed per second
+  private LinkedBlockingQueue<long[]> queue;   // {start, length, lsn}
+  private Thread thread;
+
+  // Written by the background thread only, read by any
+  public volatile long scrubbed;      // Blocks erased so far
+  public volatile long skipped;       // Blocks reallocated before their turn
+  private volatile Exception failure; // Why the thread stopped (null if it did not)
+
+  /**
+   * Create a scrubber that erases at most <blocksPerSecond> blocks per second.
+   *
+   * @param dsk
+   * @param fb
+   * @param blocksPerSecond
+   */
+  public BlockScrubber(Disk dsk, FreeBlock fb, int blocksPerSecond) {
+    disk = dsk;
+    free_block = fb;
+    rate = Math.max(1, blocksPerSecond);
+    queue = new LinkedBlockingQueue<long[]>();
+  };
+
+  /**
+   * Start the background thread.
+   */
+  public void start() {
+    thread = new Thread(this, "BlockScrubber");
+    thread.setDaemon(true);
+    thread.start();
+  };
+
+  /**
+   * Queue the extent <start, length> for scrubbing once the journal is
+   * durable up to <lsn> (0 if it does not depend on the journal).
+   *
+   * @param start
+   * @param length
+   * @param lsn
+   */
+  public void submit(int start, int length, long lsn) {
+    queue.add(new long[]{start, length, lsn});
+  };
+
+  /**
+   * Return = the number of blocks waiting to be scrubbed
+   *
+   * @return
+   */
+  public long backlog() {
+    long n = 0;
+    for(long e[]: queue) {
+      n += e[1];
+    };
+    return n;
+  };
+
+  /**
+   * Check that the background thread has not stopped on an error.
+   *
+   * throws FileSystemException if:
+   * 1. The thread stopped because of an i/o error
+   *
+   * @throws FileSystemException
+   */
+  public void check() throws FileSystemException {
+    Exception e = failure;
+    if(e != null) {
+      throw new FileSystemException("BlockScrubber: stopped on " + e);
+    };
+  };
+
+  public void run() {
+    // Work in ticks of 100ms, erasing at most rate/10 blocks per tick
+    int budget = Math.max(1, rate / 10);
+    byte zero[] = new byte[disk.blockSize];
+    try {
+      while(true) {
+        long e[] = queue.take();
+        if(e[2] > 0) {
+          disk.force(e[2]);
+        };
+        for(int b = (int) e[0]; b < e[0] + e[1]; ++b) {
+          if(budget == 0) {
+            Thread.sleep(100);
+            budget = Math.max(1, rate / 10);
+          };
+          budget--;
+          if(free_block.ifFree(b, block -> disk.scrub(block, zero))) {
+            scrubbed++;
+          }else{
+            skipped++;
+          };
+        };
+      }
+    }catch(InterruptedException e) {
+      // Shut down
+    }catch(IOException | FileSystemException e) {
+      // Reported by check()
+      failure = e;
+    };
+  };
+};
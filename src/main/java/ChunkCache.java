@@ -0,0 +1,94 @@
+// Cache of the decompressed chunks of compressed files (see ChunkMap).
+// Inflating a chunk costs more than reading it, so the most recently used
+// ones are kept here, keyed by the first disk block of the chunk.  A
+// chunk is never rewritten in place (a changed chunk goes to new blocks),
+// so an entry stays valid until its first block is freed: Disk.freed()
+// forgets it then.
+//
+// The Deflater and the Inflater that every ChunkMap uses live here too,
+// so they are created once per disk instead of once per chunk.
+
+import java.util.*;
+import java.util.zip.*;
+
+class ChunkCache {
+  private LinkedHashMap<Integer, byte[]> chunks;
+
+  public Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+  public Inflater inflater = new Inflater(true);
+
+  public long hits;                   // Lookups served from the cache
+  public long misses;                 // Lookups that inflated a chunk
+
+  /**
+   * Create a cache of at most <capacity> chunks.
+   *
+   * @param capacity
+   */
+  public ChunkCache(final int capacity) {
+    // Access ordered, so the eldest entry is the least recently used one
+    chunks = new LinkedHashMap<Integer, byte[]>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+        return size() > capacity;
+      }
+    };
+  };
+
+  /**
+   * Return = the bytes of the chunk that starts at disk block <block>
+   *        = null if it is not cached
+   *
+   * @param block
+   * @return
+   */
+  public synchronized byte[] get(int block) {
+    byte data[] = chunks.get(block);
+    if(data != null) {
+      hits++;
+    }else{
+      misses++;
+    };
+    return data;
+  };
+
+  /**
+   * Remember the bytes <data> of the chunk that starts at disk block <block>.
+   *
+   * @param block
+   * @param data
+   */
+  public synchronized void put(int block, byte[] data) {
+    chunks.put(block, data);
+  };
+
+  /**
+   * Forget the chunks that start in the blocks [start, start+length)
+   * (they have been freed).
+   *
+   * @param start
+   * @param length
+   */
+  public synchronized void forget(int start, int length) {
+    if(chunks.isEmpty()) {
+      return;
+    };
+    if(length <= chunks.size()) {
+      for(int b = start; b < start + length; ++b) {
+        chunks.remove(b);
+      };
+    }else{
+      chunks.keySet().removeIf(b -> b >= start && b < start + length);
+    };
+  };
+
+  /**
+   * Forget every chunk.
+   */
+  public synchronized void clear() {
+    chunks.clear();
+  };
+
+  public synchronized String stats() {
+    return "chunk cache: " + chunks.size() + " chunks, " + hits + " hits, " + misses + " misses";
+  };
+};
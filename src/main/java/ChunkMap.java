@@ -0,0 +1,267 @@
+// Chunks of a compressed file (Inode.isCompressed()).  The file is cut in
+// chunks of CHUNK blocks (the last one may be shorter), and each chunk is
+// stored on its own: deflated when that saves at least a block, as is
+// otherwise.  Both use the slots of the V2 block map that cover the
+// chunk, so the block map is the compressed-extent map:
+//
+//   chunk j covers the blocks j*CHUNK ... j*CHUNK+n-1 of the file (n is
+//   CHUNK, or less for the last chunk); the first k slots point to the
+//   blocks that hold the chunk and the other n-k are 0.  k < n means the
+//   k blocks hold a raw deflate stream of the chunk, k = n that the chunk
+//   is stored as is.
+//
+// A chunk is never changed in place: write() puts the new version in new
+// blocks and releases the old ones.  Blocks of compressed files may be
+// shared like any other (see RefCount), and inflated chunks are kept in
+// the disk's ChunkCache.
+
+import java.util.*;
+import java.util.zip.*;
+import java.io.*;
+
+class ChunkMap {
+  static final int CHUNK = 16;        // Blocks per chunk
+
+  private Disk disk;
+  private FreeBlock free_block;       // null if read only
+  private Inode inode;
+  private BlockMap map;
+  private int bs;
+
+  /**
+   * Create the chunk map of the compressed file <in>.  <fb> is only needed
+   * to change it.
+   *
+   * @param dsk
+   * @param fb
+   * @param in
+   */
+  public ChunkMap(Disk dsk, FreeBlock fb, Inode in) {
+    disk = dsk;
+    free_block = fb;
+    inode = in;
+    map = new BlockMap(dsk, fb, in);
+    bs = dsk.blockSize;
+  };
+
+  /**
+   * Return = the number of bytes a chunk holds
+   *
+   * @return
+   */
+  public int chunkSize() {
+    return CHUNK * bs;
+  };
+
+  /**
+   * Return = the largest size in bytes of a compressed file
+   *
+   * @return
+   */
+  public int maxSize() {
+    return map.maxSize();
+  };
+
+  /**
+   * Return = the bytes of chunk <chunk>, as large as the blocks of the
+   *          file that it covers (the bytes past the end of the file are
+   *          not meaningful).  The array is shared with the cache: it
+   *          must not be changed.
+   *
+   * throws FileSystemException if:
+   * 1. There is a read error
+   * 2. The chunk cannot be inflated
+   *
+   * @param chunk
+   * @return
+   * @throws FileSystemException
+   */
+  public byte[] read(int chunk) throws FileSystemException {
+    int first = chunk * CHUNK;
+    int n = Math.min(CHUNK, map.numBlocks() - first);
+    int k = 0;
+    int blocks[] = new int[n];
+    for(int i = 0; i < n; ++i) {
+      blocks[i] = map.getBlock(first + i);
+      if(blocks[i] != 0) {
+        k = i + 1;
+      };
+    };
+    if(k == n) {
+      // Stored as is: the buffer cache has the blocks
+      return readBlocks(blocks, n);
+    };
+
+    byte data[] = disk.chunks.get(blocks[0]);
+    if(data == null) {
+      byte packed[] = readBlocks(blocks, k);
+      data = new byte[n * bs];
+      Inflater inflater = disk.chunks.inflater;
+      synchronized(inflater) {
+        inflater.reset();
+        inflater.setInput(packed);
+        // The chunk was deflated from more than n - 1 blocks of bytes and
+        // at most n: a stream that ends early or goes on is damaged
+        int done = 0;
+        boolean longer = false;
+        try {
+          byte extra[] = new byte[1];
+          while(!inflater.finished() && !longer) {
+            int m = done < data.length ? inflater.inflate(data, done, data.length - done) : inflater.inflate(extra);
+            if(m == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+              break;
+            };
+            longer = done == data.length && m > 0;
+            done = Math.min(data.length, done + m);
+          };
+        }catch(DataFormatException e) {
+          throw new FileSystemException("ChunkMap::read(): " + e);
+        };
+        if(!inflater.finished() || longer || done <= (n - 1) * bs) {
+          throw new FileSystemException("ChunkMap::read(): chunk " + chunk + " inflates to the wrong size.");
+        };
+      }
+      disk.chunks.put(blocks[0], data);
+    };
+    return data;
+  };
+
+  /**
+   * Store data[0 ... len-1] as chunk <chunk>.  The chunk must be the one
+   * after the last (the file grows), or a mapped one that covers at least
+   * as many blocks as <len> bytes need.  The caller sets the size of the
+   * file.
+   *
+   * Effects:
+   * 1. The chunk is written to new blocks; the blocks of the old version
+   *    are released
+   * 2. The changed indirect blocks are written
+   *
+   * throws FileSystemException if:
+   * 1. The disk is full
+   * 2. The inode cannot map that many blocks
+   * 3. There is an i/o error
+   *
+   * @param chunk
+   * @param data
+   * @param len
+   * @throws FileSystemException
+   */
+  public void write(int chunk, byte[] data, int len) throws FileSystemException {
+    int first = chunk * CHUNK;
+    int n = (len + bs - 1) / bs;
+    if(first + (long) n > map.maxBlocks()) {
+      throw new FileSystemException("File too long (more than " + map.maxBlocks() + " blocks).");
+    };
+
+    // Deflate the chunk; keep it as is unless that saves a block
+    byte packed[] = new byte[(n - 1) * bs];
+    int packedLen = -1;
+    Deflater deflater = disk.chunks.deflater;
+    synchronized(deflater) {
+      deflater.reset();
+      deflater.setInput(data, 0, len);
+      deflater.finish();
+      int m = 0;
+      while(m < packed.length && !deflater.finished()) {
+        m += deflater.deflate(packed, m, packed.length - m);
+      };
+      if(deflater.finished()) {
+        packedLen = m;
+      };
+    }
+    int k = packedLen == -1 ? n : (packedLen + bs - 1) / bs;
+    byte src[] = packedLen == -1 ? data : packed;
+
+    // Write the new blocks before they are mapped, after the last block of
+    // the previous chunk
+    int goal = 0;
+    for(int b = Math.min(first, map.numBlocks()) - 1; b >= 0 && goal == 0; --b) {
+      goal = map.getBlock(b) == 0 ? 0 : map.getBlock(b) + 1;
+    };
+    int blocks[] = new int[k];
+    int i = 0;
+    for(int e[]: free_block.AllocExtents(goal, k)) {
+      for(int j = 0; j < e[1]; ++j) {
+        blocks[i++] = e[0] + j;
+      };
+    };
+    try {
+      byte buf[] = new byte[bs];
+      for(i = 0; i < k; ++i) {
+        int m = Math.min(bs, src.length - i * bs);
+        Arrays.fill(buf, (byte) 0);
+        System.arraycopy(src, i * bs, buf, 0, Math.max(0, m));
+        disk.writeBlock(blocks[i], buf);
+      };
+    }catch(IOException e) {
+      throw new FileSystemException("ChunkMap::write(): " + e);
+    };
+
+    // Map them, and release the old version of the chunk
+    ArrayList<int[]> unused = new ArrayList<int[]>();
+    for(i = 0; i < n; ++i) {
+      int block = i < k ? blocks[i] : 0;
+      if(first + i < map.numBlocks()) {
+        unused.addAll(Arrays.asList(map.replace(first + i, block)));
+      }else{
+        map.addExtent(block, 1);
+      };
+    };
+    map.flush();
+    free_block.DeallocExtents(unused.toArray(new int[unused.size()][]));
+    if(packedLen != -1) {
+      disk.chunks.put(blocks[0], Arrays.copyOf(data, n * bs));
+    };
+  };
+
+  /**
+   * Shorten the file to <size> bytes: the chunks past the end are
+   * released, and the chunk the end falls in is stored again, shorter.
+   * Nothing is done if the file is not longer.
+   *
+   * Effects:
+   * 1. The size of the inode is set
+   *
+   * throws FileSystemException if:
+   * 1. There is an i/o error
+   *
+   * @param size
+   * @throws FileSystemException
+   */
+  public void truncate(int size) throws FileSystemException {
+    if(size >= inode.getSize()) {
+      return;
+    };
+    int cs = chunkSize();
+    int chunk = size / cs;
+    byte last[] = size % cs != 0 ? read(chunk) : null;
+    int unused[][] = map.truncate(chunk * CHUNK);
+    map.flush();
+    free_block.DeallocExtents(unused);
+    inode.setSize(chunk * cs);
+    if(last != null) {
+      map = new BlockMap(disk, free_block, inode);
+      write(chunk, last, size % cs);
+    };
+    inode.setSize(size);
+  };
+
+  // Return = the contents of blocks[0 ... count-1]
+  private byte[] readBlocks(int[] blocks, int count) throws FileSystemException {
+    byte out[] = new byte[count * bs];
+    try {
+      for(int i = 0; i < count; ) {
+        int run = 1;
+        while(i + run < count && blocks[i + run] == blocks[i] + run) {
+          run++;
+        };
+        disk.readBlocks(blocks[i], run, out, i * bs);
+        i += run;
+      };
+    }catch(IOException e) {
+      throw new FileSystemException("ChunkMap::read(): " + e);
+    };
+    return out;
+  };
+};
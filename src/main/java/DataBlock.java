@@ -30,11 +30,8 @@ class DataBlock extends Block {
    */
   public void write(int block) throws FileSystemException {
     try{
-      // Move the write head to the correct location on the disk
-      disk.fp.seek(block * disk.blockSize);
-
       // Write out the data
-      disk.fp.write(buffer);
+      disk.writeBlock(block, buffer);
     }catch(IOException e){
       // Translate the exception
       throw new FileSystemException("DataBlock::write() error: " + e);
@@ -56,11 +53,8 @@ class DataBlock extends Block {
    */
   public void read(int block) throws FileSystemException {
     try{
-      // Move the read head to the correct location on the disk
-      disk.fp.seek(block * disk.blockSize);
-
       // Read in the buffer of bytes
-      disk.fp.read(buffer);
+      disk.readBlock(block, buffer);
 
       // Remember the original block number
       block_num = block;
@@ -0,0 +1,396 @@
+// Fingerprint index of data blocks, for deduplication.  When it is
+// enabled, a whole block appended to a file is fingerprinted (the first
+// FP bytes of its SHA-256) and looked up here; if an identical block is
+// known, the file refers to that block (see RefCount) instead of writing
+// a new one.
+//
+// The index is a hash table on the disk: the dedupBlocks table blocks
+// (see Disk.dedupBlock()) are buckets of ENTRY-byte entries, a fingerprint
+// and the block it was computed from.  A bucket that is full loses one of
+// its entries, so the index only forgets duplicates, it never grows.  The
+// most recently used table blocks are cached; the others are read when a
+// fingerprint falls in them.
+//
+// An entry only holds while its block keeps the bytes it was computed
+// from.  The ownerBlocks pages (see Disk.ownerBlock()) give, for each
+// disk block, the number (plus 1) of the entry that describes it, or 0:
+// an entry whose block does not point back to it is stale.  Writing or
+// freeing a block clears its owner (see Disk.writeBlock() and
+// Disk.freed()), whether deduplication is enabled or not.  The owner pages
+// are kept in memory, and are read, formatted and written back with the
+// bitmap, like the reference counts.
+//
+// The index is only a hint, and it is not journaled (a large append would
+// not fit in a transaction): lookup() compares the bytes of the block it
+// finds before returning it.  What a hint cannot survive is a block freed
+// and reused as metadata, so the owner of block 0 (never a data block)
+// records whether the owner pages on the disk are CLEAN, written by
+// Disk.flush() with nothing changed since.  The first change after that
+// marks them dirty, and Disk.end() writes the mark to the device before
+// the next transaction is logged: the journal force that makes a reuse
+// durable makes the mark durable too.  Dirty owner pages are discarded
+// when the index is read.
+
+import java.util.*;
+import java.nio.*;
+import java.io.*;
+import java.security.*;
+
+class DedupIndex {
+  static final int FP = 12;           // Bytes of a fingerprint
+  static final int ENTRY = FP + 4;    // A fingerprint and a block number
+  static final int CLEAN = 0x44445550; // Owner of block 0 when the pages are up to date
+
+  public boolean enabled;             // Appended blocks are looked up and indexed
+  public long hits;                   // Blocks that were found
+  public long misses;                 // Blocks that had to be written
+
+  private Disk disk;
+  private int perBlock;               // Entries per table block
+  private ByteBuffer owners[];        // Owner pages
+  private boolean ownerDirty[];
+  private int perPage;                // Owners per page
+  private int capacity;               // Table blocks to cache
+  private LinkedHashMap<Integer, ByteBuffer> table;
+  private HashSet<Integer> tableDirty = new HashSet<Integer>();
+  private MessageDigest sha;
+  private boolean clean;              // The owner pages on the disk are CLEAN
+  private boolean marking;            // The owner pages are no longer CLEAN, the device does not know yet
+  private byte scratch[];             // Block compared by lookup()
+
+  /**
+   * Create the index of <dsk>, caching at most <capacity> table blocks.
+   *
+   * @param dsk
+   * @param capacity
+   */
+  public DedupIndex(Disk dsk, int capacity) {
+    disk = dsk;
+    this.capacity = capacity;
+    perBlock = disk.blockSize / ENTRY;
+    perPage = disk.blockSize / 4;
+    owners = new ByteBuffer[disk.ownerBlocks];
+    for(int i = 0; i < owners.length; ++i) {
+      owners[i] = ByteBuffer.allocate(disk.blockSize);
+    };
+    ownerDirty = new boolean[owners.length];
+    scratch = new byte[disk.blockSize];
+    // Access ordered, so the eldest entry is the least recently used one
+    table = new LinkedHashMap<Integer, ByteBuffer>(16, 0.75f, true);
+    try {
+      sha = MessageDigest.getInstance("SHA-256");
+    }catch(NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
+    };
+  };
+
+  /**
+   * Read the owner pages, and forget the cached table blocks.  Pages that
+   * were not written CLEAN are discarded: the index starts empty.
+   *
+   * throws FileSystemException if:
+   * 1. There is a read error
+   *
+   * @throws FileSystemException
+   */
+  public synchronized void read() throws FileSystemException {
+    try {
+      for(int i = 0; i < owners.length; ++i) {
+        disk.readBlock(disk.ownerBlock(i), owners[i].array());
+      };
+    }catch(IOException e) {
+      throw new FileSystemException("DedupIndex::read(): " + e);
+    };
+    clean = owner(0) == CLEAN;
+    marking = false;
+    Arrays.fill(ownerDirty, !clean);
+    if(!clean) {
+      for(ByteBuffer p: owners) {
+        Arrays.fill(p.array(), (byte) 0);
+      };
+    };
+    table.clear();
+    tableDirty.clear();
+  };
+
+  /**
+   * Initialize the index of a freshly formatted disk: it is empty.
+   *
+   * Effects:
+   * 1. All table blocks and owner pages are written
+   *
+   * throws FileSystemException if:
+   * 1. There is a write error
+   *
+   * @throws FileSystemException
+   */
+  public synchronized void format() throws FileSystemException {
+    for(ByteBuffer p: owners) {
+      Arrays.fill(p.array(), (byte) 0);
+    };
+    Arrays.fill(ownerDirty, true);
+    clean = false;
+    marking = false;
+    table.clear();
+    tableDirty.clear();
+    try {
+      byte zero[] = new byte[disk.blockSize];
+      for(int t = 0; t < disk.dedupBlocks; ++t) {
+        disk.writeBlock(disk.dedupBlock(t), zero);
+      };
+    }catch(IOException e) {
+      throw new FileSystemException("DedupIndex::format(): " + e);
+    };
+    flush();
+  };
+
+  /**
+   * Return = the fingerprint of the block <data>
+   *
+   * @param data
+   * @return
+   */
+  public byte[] fingerprint(byte[] data) {
+    synchronized(sha) {
+      sha.update(data, 0, disk.blockSize);
+      return Arrays.copyOf(sha.digest(), FP);
+    }
+  };
+
+  /**
+   * Return = a block that holds the same bytes as <data> (blockSize bytes),
+   *          whose fingerprint is <fp>
+   *        = 0 if none is known
+   *
+   * throws FileSystemException if:
+   * 1. There is an i/o error
+   *
+   * @param fp
+   * @param data
+   * @return
+   * @throws FileSystemException
+   */
+  public synchronized int lookup(byte[] fp, byte[] data) throws FileSystemException {
+    int t = bucketOf(fp);
+    ByteBuffer b = bucket(t);
+    for(int i = 0; i < perBlock; ++i) {
+      if(valid(b, t, i) && matches(b, i, fp)) {
+        int block = b.getInt(i * ENTRY + FP);
+        try {
+          disk.readBlock(block, scratch);
+        }catch(IOException e) {
+          throw new FileSystemException("DedupIndex::lookup(): " + e);
+        };
+        if(Arrays.equals(scratch, data)) {
+          hits++;
+          return block;
+        };
+      };
+    };
+    misses++;
+    return 0;
+  };
+
+  /**
+   * Record that block <block>, which has just been written, has the
+   * fingerprint <fp>.
+   *
+   * throws FileSystemException if:
+   * 1. There is an i/o error
+   *
+   * @param fp
+   * @param block
+   * @throws FileSystemException
+   */
+  public synchronized void insert(byte[] fp, int block) throws FileSystemException {
+    int t = bucketOf(fp);
+    ByteBuffer b = bucket(t);
+
+    // A stale entry if there is one, or else one chosen by the fingerprint
+    int slot = -1;
+    for(int i = 0; i < perBlock && slot == -1; ++i) {
+      if(!valid(b, t, i)) {
+        slot = i;
+      };
+    };
+    touch();
+    if(slot == -1) {
+      slot = (ByteBuffer.wrap(fp).getInt(4) & 0x7fffffff) % perBlock;
+      setOwner(b.getInt(slot * ENTRY + FP), 0);
+    };
+
+    for(int i = 0; i < FP; ++i) {
+      b.put(slot * ENTRY + i, fp[i]);
+    };
+    b.putInt(slot * ENTRY + FP, block);
+    tableDirty.add(t);
+    setOwner(block, t * perBlock + slot + 1);
+  };
+
+  /**
+   * Forget the fingerprint of block <block> (its bytes are changing).
+   *
+   * @param block
+   */
+  public synchronized void forget(int block) {
+    if(block > 0 && block < disk.numBlocks && owner(block) != 0) {
+      touch();
+      setOwner(block, 0);
+    };
+  };
+
+  /**
+   * Forget the fingerprints of the blocks [start, start+length) (they
+   * have been freed).
+   *
+   * @param start
+   * @param length
+   */
+  public synchronized void forget(int start, int length) {
+    for(int b = start; b < start + length; ++b) {
+      forget(b);
+    };
+  };
+
+  /**
+   * Write the table blocks and owner pages that changed since the last
+   * flush.  They are ordinary block writes, outside the journal.
+   *
+   * throws FileSystemException if:
+   * 1. There is a write error
+   *
+   * @throws FileSystemException
+   */
+  public synchronized void flush() throws FileSystemException {
+    try {
+      for(int t: tableDirty) {
+        disk.writeBlock(disk.dedupBlock(t), table.get(t).array());
+      };
+      tableDirty.clear();
+      for(int i = 0; i < owners.length; ++i) {
+        if(ownerDirty[i]) {
+          disk.writeBlock(disk.ownerBlock(i), owners[i].array());
+          ownerDirty[i] = false;
+        };
+      };
+    }catch(IOException e) {
+      throw new FileSystemException("DedupIndex::write(): " + e);
+    };
+  };
+
+  /**
+   * Write the whole index out, its owner pages marked CLEAN.  The caller
+   * makes the writes durable (see Disk.flush()).
+   *
+   * throws FileSystemException if:
+   * 1. There is a write error
+   *
+   * @throws FileSystemException
+   */
+  public synchronized void seal() throws FileSystemException {
+    if(clean) {
+      // Nothing changed since the last seal()
+      return;
+    };
+    owners[0].putInt(0, CLEAN);
+    ownerDirty[0] = true;
+    flush();
+    clean = true;
+    marking = false;
+  };
+
+  /**
+   * Write the dirty mark of the owner pages to the device, if they stopped
+   * being CLEAN since it was last written.  The caller makes the write
+   * durable (see Disk.end()).
+   *
+   * throws IOException if:
+   * 1. There is a write error
+   *
+   * @throws IOException
+   */
+  public synchronized void mark() throws IOException {
+    if(!marking) {
+      return;
+    };
+    disk.writeBlock(disk.ownerBlock(0), owners[0].array());
+    disk.device.write(disk.ownerBlock(0), owners[0].array(), 0);
+    marking = false;
+  };
+
+  public synchronized String stats() {
+    return "dedup: " + (enabled ? "on" : "off") + ", " + table.size() + " index blocks cached, "
+        + hits + " blocks found, " + misses + " written";
+  };
+
+  // Before the first change after seal(), mark the owner pages dirty, so
+  // that they are discarded if the disk is not flushed again.  mark()
+  // writes the mark to the device.
+  private void touch() {
+    if(!clean) {
+      return;
+    };
+    clean = false;
+    marking = true;
+    owners[0].putInt(0, 0);
+    ownerDirty[0] = true;
+  };
+
+  // Number of the table block that holds the fingerprint <fp>
+  private int bucketOf(byte[] fp) {
+    return (ByteBuffer.wrap(fp).getInt(0) & 0x7fffffff) % disk.dedupBlocks;
+  };
+
+  // Return = table block <t>, from the cache if possible.  The least
+  //          recently used block is dropped (written if it changed) when
+  //          the cache is full.
+  private ByteBuffer bucket(int t) throws FileSystemException {
+    ByteBuffer b = table.get(t);
+    if(b != null) {
+      return b;
+    };
+    b = ByteBuffer.allocate(disk.blockSize);
+    try {
+      disk.readBlock(disk.dedupBlock(t), b.array());
+      if(table.size() >= capacity) {
+        Map.Entry<Integer, ByteBuffer> eldest = table.entrySet().iterator().next();
+        if(tableDirty.remove(eldest.getKey())) {
+          disk.writeBlock(disk.dedupBlock(eldest.getKey()), eldest.getValue().array());
+        };
+        table.remove(eldest.getKey());
+      };
+    }catch(IOException e) {
+      throw new FileSystemException("DedupIndex::read(): " + e);
+    };
+    table.put(t, b);
+    return b;
+  };
+
+  // Return = true if entry <i> of table block <t> (held in <b>) describes
+  //          its block
+  private boolean valid(ByteBuffer b, int t, int i) {
+    int block = b.getInt(i * ENTRY + FP);
+    return block > 0 && block < disk.numBlocks && owner(block) == t * perBlock + i + 1;
+  };
+
+  private boolean matches(ByteBuffer b, int i, byte[] fp) {
+    for(int j = 0; j < FP; ++j) {
+      if(b.get(i * ENTRY + j) != fp[j]) {
+        return false;
+      };
+    };
+    return true;
+  };
+
+  private int owner(int block) {
+    return owners[block / perPage].getInt(4 * (block % perPage));
+  };
+
+  private void setOwner(int block, int entry) {
+    if(block <= 0 || block >= disk.numBlocks) {
+      return;
+    };
+    owners[block / perPage].putInt(4 * (block % perPage), entry);
+    ownerDirty[block / perPage] = true;
+  };
+};
@@ -0,0 +1,235 @@
+// Cache of directory entries for path resolution.  A dentry maps (first
+// block of a directory, name) to what the name is in that directory:
+// nothing (a negative entry), a file, or a directory and its first block.
+// Resolving a path that has been seen before walks the dentries without
+// reading any directory block.
+//
+// Lookups take the name as a range of the path, so a hit creates no
+// String.  The entries are chained in a hash table and kept in LRU order;
+// the least recently used one is dropped when the cache is full.  The
+// file system removes the entries that an operation makes stale.
+//
+// Every directory entry that goes through the cache also leaves a parent
+// link (first block of the directory -> first block of its parent).  The
+// links are not dropped with the LRU entries: every directory on a path
+// that has been resolved has one, so the ancestors of a directory are
+// found without reading any block (see FileSystem.move()).
+
+import java.util.*;
+
+class DentryCache {
+  static class Dentry {
+    int parent;                       // First block of the directory
+    String name;
+    int hash;                         // Inode.hashName() of name
+    boolean exists;                   // false -> negative entry
+    boolean file;
+    int child;                        // First block of a directory entry
+
+    Dentry chain;                     // Next entry in the same hash slot
+    Dentry newer, older;              // LRU list
+  };
+
+  private Dentry table[];
+  private int capacity;
+  private int size;
+  private Dentry newest, oldest;
+  private HashMap<Integer, Integer> parents = new HashMap<Integer, Integer>();
+
+  public long hits;                   // Lookups answered by the cache
+  public long misses;                 // Lookups that went to the directory
+
+  /**
+   * Create a cache of at most <capacity> entries.
+   *
+   * @param capacity
+   */
+  public DentryCache(int capacity) {
+    this.capacity = capacity;
+    int n = 1;
+    while(n < 2 * capacity) {
+      n <<= 1;
+    };
+    table = new Dentry[n];
+  };
+
+  /**
+   * Return = the entry for the name str[start ... end-1] of the directory
+   *          whose first block is <parent>
+   *        = null if it is not cached
+   *
+   * @param parent
+   * @param str
+   * @param start
+   * @param end
+   * @return
+   */
+  public Dentry get(int parent, String str, int start, int end) {
+    int hash = Inode.hashName(str, start, end);
+    for(Dentry d = table[slot(parent, hash)]; d != null; d = d.chain) {
+      if(d.hash == hash && d.parent == parent && d.name.length() == end - start
+         && d.name.regionMatches(0, str, start, end - start)) {
+        hits++;
+        unlink(d);
+        pushNewest(d);
+        return d;
+      };
+    };
+    misses++;
+    return null;
+  };
+
+  /**
+   * Record what <name> is in the directory whose first block is <parent>.
+   *
+   * Return = the entry
+   *
+   * @param parent
+   * @param name
+   * @param exists
+   * @param file
+   * @param child
+   * @return
+   */
+  public Dentry put(int parent, String name, boolean exists, boolean file, int child) {
+    remove(parent, name);
+    Dentry d = new Dentry();
+    d.parent = parent;
+    d.name = name;
+    d.hash = Inode.hashName(name, 0, name.length());
+    d.exists = exists;
+    d.file = file;
+    d.child = child;
+    if(exists && !file) {
+      parents.put(child, parent);
+    };
+
+    int s = slot(parent, d.hash);
+    d.chain = table[s];
+    table[s] = d;
+    pushNewest(d);
+    if(++size > capacity) {
+      drop(oldest);
+    };
+    return d;
+  };
+
+  /**
+   * Forget the entry for <name> in the directory whose first block is <parent>.
+   *
+   * @param parent
+   * @param name
+   */
+  public void remove(int parent, String name) {
+    int hash = Inode.hashName(name, 0, name.length());
+    for(Dentry d = table[slot(parent, hash)]; d != null; d = d.chain) {
+      if(d.hash == hash && d.parent == parent && d.name.equals(name)) {
+        drop(d);
+        return;
+      };
+    };
+  };
+
+  /**
+   * Forget every entry of the directory whose first block is <parent>
+   * (the directory is being removed, and its block may be reused).
+   *
+   * @param parent
+   */
+  public void removeDirectory(int parent) {
+    parents.remove(parent);
+    for(Dentry d = newest; d != null; ) {
+      Dentry next = d.older;
+      if(d.parent == parent) {
+        drop(d);
+      };
+      d = next;
+    };
+  };
+
+  /**
+   * Return = the first block of the parent of the directory whose first
+   *          block is <dir>
+   *        = -1 if the directory has not been resolved (or is the root)
+   *
+   * @param dir
+   * @return
+   */
+  public int parentOf(int dir) {
+    Integer p = parents.get(dir);
+    return p == null ? -1 : p;
+  };
+
+  /**
+   * Record that the directory whose first block is <dir> now belongs to
+   * the directory whose first block is <parent>.  The entries of <dir>
+   * itself are still valid.
+   *
+   * @param dir
+   * @param parent
+   */
+  public void moveDirectory(int dir, int parent) {
+    parents.put(dir, parent);
+  };
+
+  /**
+   * Forget every entry.
+   */
+  public void clear() {
+    Arrays.fill(table, null);
+    parents.clear();
+    newest = oldest = null;
+    size = 0;
+  };
+
+  public String stats() {
+    return "dentry cache: " + size + " entries, " + hits + " hits, " + misses + " misses";
+  };
+
+  private int slot(int parent, int hash) {
+    int h = hash ^ (parent * 0x9e3779b9);
+    return (h ^ (h >>> 16)) & (table.length - 1);
+  };
+
+  // Remove <d> from the table and the LRU list
+  private void drop(Dentry d) {
+    int s = slot(d.parent, d.hash);
+    if(table[s] == d) {
+      table[s] = d.chain;
+    }else{
+      Dentry p = table[s];
+      while(p.chain != d) {
+        p = p.chain;
+      };
+      p.chain = d.chain;
+    };
+    unlink(d);
+    size--;
+  };
+
+  private void unlink(Dentry d) {
+    if(d.newer != null) {
+      d.newer.older = d.older;
+    }else{
+      newest = d.older;
+    };
+    if(d.older != null) {
+      d.older.newer = d.newer;
+    }else{
+      oldest = d.newer;
+    };
+    d.newer = d.older = null;
+  };
+
+  private void pushNewest(Dentry d) {
+    d.older = newest;
+    d.newer = null;
+    if(newest != null) {
+      newest.newer = d;
+    };
+    newest = d;
+    if(oldest == null) {
+      oldest = d;
+    };
+  };
+};
@@ -1,13 +1,30 @@
+// A directory is either a single DirectoryBlock or, once it has outgrown
+// one block, a DirectoryIndex whose leaves are DirectoryBlocks.  The
+// methods that take the directory's first block (<root>) handle both.
+
+import java.util.*;
+
 class DirectoryBlock extends DirectoryBlockAbstract {
 
+  // Index of the directory last searched by lookup() (if it has one)
+  private DirectoryIndex index;
+
   public DirectoryBlock(Disk dsk) {
     super(dsk);
+    index = new DirectoryIndex(dsk);
   }
 
   @Override
   public int findName(String name) {
+    return findName(name, 0, name.length());
+  }
+
+  // Same as findName(), for the name str[start ... end-1].  Compares the
+  // name in place, without creating any String.
+  public int findName(String str, int start, int end) {
+    int hash = Inode.hashName(str, start, end);
     for(int i = 0; i < maxFiles; ++i) {
-      if(inodes[i].used_p && inodes[i].getName().equals(name)) {
+      if(hashes[i] == hash && inodes[i].isUsed() && inodes[i].nameEquals(str, start, end)) {
         return i;
       }
     };
@@ -18,7 +35,7 @@ class DirectoryBlock extends DirectoryBlockAbstract {
   public int numEntries() {
     int count = 0;
     for(int i = 0; i < maxFiles; ++i) {
-      if(inodes[i].used_p) {
+      if(inodes[i].isUsed()) {
         count++;
       }
     };
@@ -29,12 +46,176 @@ class DirectoryBlock extends DirectoryBlockAbstract {
   @Override
   public int AllocFree(String name, boolean file_flag) throws FileSystemException {
     for(int i = 0; i < maxFiles; ++i) {
-      if(!inodes[i].used_p) {
+      if(!inodes[i].isUsed()) {
         inodes[i].Alloc(name, file_flag);
+        hashes[i] = inodes[i].nameHash();
         return i;
       }
     }
 
     return -1;
   }
+
+  /**
+   * Find the entry named str[start ... end-1] in the directory whose
+   * first block is <root>.
+   *
+   * Effects:
+   * 1. This object is positioned on the block that holds the entry, or
+   *    the block where it would be added
+   *
+   * Return = the index of the entry in that block
+   *     or = -1 if there is no such entry
+   *
+   * throws FileSystemException if:
+   * 1. There is a read error
+   *
+   * @param root
+   * @param str
+   * @param start
+   * @param end
+   * @return
+   * @throws FileSystemException
+   */
+  public int lookup(int root, String str, int start, int end) throws FileSystemException {
+    read(root);
+    if(DirectoryIndex.isIndex(image)) {
+      index.load(root, image);
+      read(index.leaf(Inode.hashName(str, start, end)));
+    };
+    return findName(str, start, end);
+  }
+
+  /**
+   * Add the entry <name> to the directory whose first block is <root>.
+   * The entry must not exist yet.  Full blocks are split as needed.
+   *
+   * Effects:
+   * 1. This object is positioned on the block that holds the new entry
+   *    (the entry itself is not written)
+   * 2. Blocks may be added to the directory
+   *
+   * Return = the index of the entry in that block
+   *
+   * throws FileSystemException if:
+   * 1. <name> is not a legal file name
+   * 2. The directory or the disk is full
+   * 3. There is an i/o error
+   *
+   * @param root
+   * @param name
+   * @param file_flag
+   * @param free_block
+   * @return
+   * @throws FileSystemException
+   */
+  public int insert(int root, String name, boolean file_flag, FreeBlock free_block) throws FileSystemException {
+    int hash = Inode.hashName(name, 0, name.length());
+    while(true) {
+      lookup(root, name, 0, name.length());
+      int i = AllocFree(name, file_flag);
+      if(i != -1) {
+        return i;
+      };
+      if(block_num == root) {
+        index.create(this, free_block);
+      }else{
+        index.split(this, hash, free_block);
+      };
+    }
+  }
+
+  /**
+   * Return = the blocks that hold the entries of the directory whose
+   *          first block is <root>
+   *
+   * throws FileSystemException if:
+   * 1. There is a read error
+   *
+   * @param root
+   * @return
+   * @throws FileSystemException
+   */
+  public int[] leaves(int root) throws FileSystemException {
+    read(root);
+    if(!DirectoryIndex.isIndex(image)) {
+      return new int[]{root};
+    };
+    index.load(root, image);
+    return index.leaves();
+  }
+
+  /**
+   * Return = every block of the directory whose first block is <root>,
+   *          as a list of {start, length} extents
+   *
+   * throws FileSystemException if:
+   * 1. There is a read error
+   *
+   * @param root
+   * @return
+   * @throws FileSystemException
+   */
+  public int[][] blocks(int root) throws FileSystemException {
+    ArrayList<int[]> out = new ArrayList<int[]>();
+    out.add(new int[]{root, 1});
+    read(root);
+    if(DirectoryIndex.isIndex(image)) {
+      index.load(root, image);
+      for(int b: index.leaves()) {
+        out.add(new int[]{b, 1});
+      };
+      for(int b: index.tableBlocks()) {
+        out.add(new int[]{b, 1});
+        disk.pointers.remove(b);
+      };
+    };
+    return out.toArray(new int[out.size()][]);
+  }
+
+  /**
+   * Return = the number of entries of the directory whose first block is <root>
+   *
+   * throws FileSystemException if:
+   * 1. There is a read error
+   *
+   * @param root
+   * @return
+   * @throws FileSystemException
+   */
+  public int numEntries(int root) throws FileSystemException {
+    int count = 0;
+    for(int b: leaves(root)) {
+      read(b);
+      count += numEntries();
+    };
+    return count;
+  }
+
+  /**
+   * Print the entries of the directory whose first block is <root>, each
+   * preceded by <base>.
+   *
+   * throws FileSystemException if:
+   * 1. There is a read error
+   *
+   * @param root
+   * @param base
+   * @throws FileSystemException
+   */
+  public void listAll(int root, String base) throws FileSystemException {
+    int count = 0;
+    for(int b: leaves(root)) {
+      read(b);
+      for(int i = 0; i < maxFiles; ++i) {
+        if(inodes[i].isUsed()) {
+          inodes[i].list(base);
+          ++count;
+        }
+      };
+    };
+    if(count == 0) {
+      System.out.println("0 files found.");
+    };
+  }
 }
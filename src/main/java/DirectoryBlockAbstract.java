@@ -1,5 +1,6 @@
 // Representation of the contents of a directory block.  This
-// block consists of a fixed number of inodes
+// block consists of a fixed number of inodes.  The block is held as one
+// image; the inodes are views of it at fixed offsets.
 //
 // TODO
 // - Extend DirectoryBlockAbstract with a class called DirectoryBlock
@@ -10,6 +11,7 @@
 
 import java.util.*;
 import java.lang.*;
+import java.nio.*;
 import java.io.*;
 
 
@@ -18,6 +20,12 @@ abstract class DirectoryBlockAbstract extends Block {
   // The directory data consists of a set of Inodes
   public Inode inodes[];
 
+  // Bytes of the block; the inodes read and write them in place
+  protected ByteBuffer image;
+
+  // Hash of the name of each used inode (see Inode.nameHash())
+  protected int hashes[];
+
   /**
    * Creates the DirectoryBlock structure.
    * @param dsk
@@ -26,12 +34,16 @@ abstract class DirectoryBlockAbstract extends Block {
 
     // Reference to the disk
     disk = dsk;
+    // An empty block
+    image = ByteBuffer.allocate(disk.blockSize);
     // The set of inodes contained in this directory block
     inodes = new Inode[maxFiles];
+    hashes = new int[maxFiles];
     int i;
     // Create the individual inodes
+    int size = Inode.size(nameSize, maxFileBlock);
     for(i = 0; i < maxFiles; ++i) {
-      inodes[i] = new Inode(nameSize, maxFileBlock);
+      inodes[i] = new Inode(image, i * size, nameSize, maxFileBlock);
     };
   };
 
@@ -52,7 +64,7 @@ abstract class DirectoryBlockAbstract extends Block {
 
     // Loop over all file/directory slots in this directory
     for(i = 0; i < maxFiles; ++i) {
-      if(inodes[i].used_p) {
+      if(inodes[i].isUsed()) {
         // Only display those entries that are valid
         inodes[i].list(base);
         ++count;
@@ -72,7 +84,7 @@ abstract class DirectoryBlockAbstract extends Block {
    * @param index
    */
   final public void DeallocEntry(int index) {
-    inodes[index].used_p = false;
+    inodes[index].Dealloc();
   };
 
   /**
@@ -91,17 +103,11 @@ abstract class DirectoryBlockAbstract extends Block {
    * @throws FileSystemException
    */
   final public void write(int block) throws FileSystemException {
-    int i;
     try{
-      // Move the write head to the correct location
-      disk.fp.seek(block * disk.blockSize);
+      // The inodes already live in the block image
+      disk.writeMetadata(block, image.array());
     }catch(IOException e) {
-      throw new FileSystemException("DirectoryBlock::write(): seek error: " + e);
-    };
-
-    // Write the individual inodes out to the disk.
-    for(i = 0; i < maxFiles; ++i) {
-      inodes[i].write(disk.fp);
+      throw new FileSystemException("DirectoryBlock::write(): " + e);
     };
   };
 
@@ -120,17 +126,16 @@ abstract class DirectoryBlockAbstract extends Block {
    * @throws FileSystemException
    */
   final public void read(int block) throws FileSystemException {
-    int i;
     try {
-      // Set the position of the read head
-      disk.fp.seek(block * disk.blockSize);
+      // Fetch the whole block at once; the inodes see it in place
+      disk.readBlock(block, image.array());
     }catch(IOException e) {
-      throw new FileSystemException("DirectoryBlock::write(): seek error: " + e);
+      throw new FileSystemException("DirectoryBlock::read(): " + e);
     };
 
-    // Read in the individual inodes
-    for(i = 0; i < maxFiles; ++i) {
-      inodes[i].read(disk.fp);
+    // Hash the names once, so that lookups can skip most entries cheaply
+    for(int i = 0; i < maxFiles; ++i) {
+      hashes[i] = inodes[i].isUsed() ? inodes[i].nameHash() : 0;
     };
 
     // Remember the block number that we read from
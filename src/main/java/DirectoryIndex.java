@@ -0,0 +1,342 @@
+// Hashed index of a directory that has outgrown a single block.
+//
+// A directory starts as one DirectoryBlock.  When that block is full, its
+// entries move to a new leaf block and the directory's first block
+// becomes the index root (extendible hashing):
+// - byte 0: MAGIC (never a valid inode version, so a plain directory
+//   block cannot be mistaken for an index)
+// - byte 1: the global depth D
+// - bytes 2-3: the number of table blocks
+// - then the table block numbers, one int each
+// The table has 2^D entries, perBlock ints per table block; entry i is the
+// leaf (a DirectoryBlock) holding the names whose hash has i as its low
+// D bits.  A leaf with local depth L is referenced by the 2^(D-L) entries
+// that share its low L bits.  A full leaf is split in two by the next hash
+// bit, which only rewrites that leaf, the new one and the table entries
+// that referenced it; the table doubles when a leaf at depth D splits.
+// A lookup reads the root, one table block (through the disk's
+// PointerCache) and one leaf.
+
+import java.util.*;
+import java.lang.*;
+import java.nio.*;
+import java.io.*;
+
+class DirectoryIndex extends Block {
+  static final byte MAGIC = (byte) 0xD1;
+
+  public int depth;                   // Global depth D
+  public int tables[];                // Table blocks in use
+  private int numTables;
+  private int perBlock;               // Table entries per table block
+  private int maxDepth;               // Largest D that fits in the root
+
+  // Table blocks changed by the current split, written at its end
+  private LinkedHashMap<Integer, int[]> dirty = new LinkedHashMap<Integer, int[]>();
+
+  /**
+   * Create an empty index.
+   * @param dsk
+   */
+  public DirectoryIndex(Disk dsk) {
+    disk = dsk;
+    perBlock = disk.blockSize / 4;
+    tables = new int[(disk.blockSize - 4) / 4];
+    maxDepth = 0;
+    while(2L << maxDepth <= (long) tables.length * perBlock) {
+      maxDepth++;
+    };
+  };
+
+  /**
+   * Return = true if <image> (a directory block) is an index root
+   *
+   * @param image
+   * @return
+   */
+  static public boolean isIndex(ByteBuffer image) {
+    return image.get(0) == MAGIC;
+  };
+
+  /**
+   * Return = the table entry of the name whose hash is <hash> in a table
+   *          of depth <depth>
+   *
+   * @param hash
+   * @param depth
+   * @return
+   */
+  static public int bucket(int hash, int depth) {
+    return mix(hash) & ((1 << depth) - 1);
+  };
+
+  // Spread the bits of a name hash over the low bits used by the table
+  static private int mix(int hash) {
+    return hash ^ (hash >>> 16);
+  };
+
+  /**
+   * Decode the index root held by <image>, which was read from <block>.
+   *
+   * @param block
+   * @param image
+   */
+  public void load(int block, ByteBuffer image) {
+    // Table blocks left over by a split() that failed were never written
+    dirty.clear();
+    depth = image.get(1);
+    numTables = image.getShort(2);
+    for(int i = 0; i < numTables; ++i) {
+      tables[i] = image.getInt(4 + 4 * i);
+    };
+    block_num = block;
+  };
+
+  /**
+   * Read the index root from disk block <block>.
+   *
+   * throws FileSystemException if:
+   * 1. There is a read error
+   * 2. The block is not an index root
+   *
+   * @param block
+   * @throws FileSystemException
+   */
+  public void read(int block) throws FileSystemException {
+    ByteBuffer image = ByteBuffer.allocate(disk.blockSize);
+    try {
+      disk.readBlock(block, image.array());
+    }catch(IOException e) {
+      throw new FileSystemException("DirectoryIndex::read(): " + e);
+    };
+    if(!isIndex(image)) {
+      throw new FileSystemException("DirectoryIndex::read(): block " + block + " is not a directory index");
+    };
+    load(block, image);
+  };
+
+  /**
+   * Write the index root to disk block <block>.
+   *
+   * throws FileSystemException if:
+   * 1. There is a write error
+   *
+   * @param block
+   * @throws FileSystemException
+   */
+  public void write(int block) throws FileSystemException {
+    ByteBuffer image = ByteBuffer.allocate(disk.blockSize);
+    image.put(0, MAGIC);
+    image.put(1, (byte) depth);
+    image.putShort(2, (short) numTables);
+    for(int i = 0; i < numTables; ++i) {
+      image.putInt(4 + 4 * i, tables[i]);
+    };
+    try {
+      disk.writeMetadata(block, image.array());
+    }catch(IOException e) {
+      throw new FileSystemException("DirectoryIndex::write(): " + e);
+    };
+    block_num = block;
+  };
+
+  /**
+   * Return = the leaf block that holds (or would hold) the name whose
+   *          hash is <hash>
+   *
+   * throws FileSystemException if:
+   * 1. There is a read error
+   *
+   * @param hash
+   * @return
+   * @throws FileSystemException
+   */
+  public int leaf(int hash) throws FileSystemException {
+    return entry(bucket(hash, depth));
+  };
+
+  /**
+   * Return = every leaf block of the index, each one once
+   *
+   * throws FileSystemException if:
+   * 1. There is a read error
+   *
+   * @return
+   * @throws FileSystemException
+   */
+  public int[] leaves() throws FileSystemException {
+    LinkedHashSet<Integer> out = new LinkedHashSet<Integer>();
+    for(int i = 0; i < 1 << depth; ++i) {
+      out.add(entry(i));
+    };
+    int result[] = new int[out.size()];
+    int n = 0;
+    for(int b: out) {
+      result[n++] = b;
+    };
+    return result;
+  };
+
+  /**
+   * Return = the table blocks of the index
+   *
+   * @return
+   */
+  public int[] tableBlocks() {
+    return Arrays.copyOf(tables, numTables);
+  };
+
+  /**
+   * Turn the full directory block <dir> (read from its first block) into
+   * an index root with a single leaf.
+   *
+   * Effects:
+   * 1. The entries of <dir> move to a new leaf block, which <dir> is
+   *    positioned on
+   * 2. The directory's first block is rewritten as the root of an index of
+   *    depth 0
+   *
+   * throws FileSystemException if:
+   * 1. There is no room for the new blocks
+   * 2. There is a write error
+   *
+   * @param dir
+   * @param free_block
+   * @throws FileSystemException
+   */
+  public void create(DirectoryBlock dir, FreeBlock free_block) throws FileSystemException {
+    int root = dir.block_num;
+    int blocks[][] = free_block.AllocExtents(root + 1, 2);
+    int leaf = blocks[0][0];
+    int table = blocks[0][1] > 1 ? leaf + 1 : blocks[1][0];
+
+    dir.write(leaf);
+    dir.block_num = leaf;
+    int entries[] = new int[perBlock];
+    entries[0] = leaf;
+    dirty.put(table, entries);
+    flush();
+
+    depth = 0;
+    numTables = 1;
+    tables[0] = table;
+    write(root);
+  };
+
+  /**
+   * Split the full leaf <dir> (as positioned by DirectoryBlock.lookup())
+   * in two, on behalf of the name whose hash is <hash>.
+   *
+   * Effects:
+   * 1. A new leaf is allocated and the entries of <dir> whose next hash
+   *    bit is set move to it
+   * 2. The table is updated (and doubled if needed)
+   *
+   * throws FileSystemException if:
+   * 1. The directory cannot grow any further
+   * 2. There is no room for the new blocks
+   * 3. There is a read/write error
+   *
+   * @param dir
+   * @param hash
+   * @param free_block
+   * @throws FileSystemException
+   */
+  public void split(DirectoryBlock dir, int hash, FreeBlock free_block) throws FileSystemException {
+    int slot = bucket(hash, depth);
+    int leaf = dir.block_num;
+
+    // The local depth is the first bit whose buddy entry is the same leaf
+    int local = 0;
+    while(local < depth && entry(slot ^ (1 << local)) != leaf) {
+      local++;
+    };
+    if(local == depth) {
+      grow(free_block);
+      slot = bucket(hash, depth);
+    };
+
+    // Move the entries that have bit <local> set to a new leaf
+    int other = free_block.AllocExtents(leaf + 1, 1)[0][0];
+    DirectoryBlock next = new DirectoryBlock(disk);
+    int size = Inode.size(nameSize, maxFileBlock);
+    for(int i = 0; i < maxFiles; ++i) {
+      if(dir.inodes[i].isUsed() && ((mix(dir.hashes[i]) >>> local) & 1) != 0) {
+        System.arraycopy(dir.image.array(), i * size, next.image.array(), i * size, size);
+        dir.DeallocEntry(i);
+      };
+    };
+    dir.write(leaf);
+    next.write(other);
+
+    // Entries that share the low <local> bits and have bit <local> set
+    int low = slot & ((1 << local) - 1);
+    for(int i = low | (1 << local); i < 1 << depth; i += 2 << local) {
+      setEntry(i, other);
+    };
+    flush();
+  };
+
+  // Double the table
+  private void grow(FreeBlock free_block) throws FileSystemException {
+    if(depth >= maxDepth) {
+      throw new FileSystemException("Directory full.");
+    };
+    int size = 1 << depth;
+    int need = (2 * size + perBlock - 1) / perBlock;
+    while(numTables < need) {
+      tables[numTables] = free_block.AllocExtents(tables[numTables - 1] + 1, 1)[0][0];
+      dirty.put(tables[numTables], new int[perBlock]);
+      numTables++;
+    };
+    for(int i = 0; i < size; ++i) {
+      setEntry(size + i, entry(i));
+    };
+    depth++;
+    write(block_num);
+  };
+
+  // Entries of table block <block>, which must not be changed in place:
+  // the array may be the one held by the PointerCache
+  private int[] table(int block) throws FileSystemException {
+    int entries[] = dirty.get(block);
+    if(entries != null) {
+      return entries;
+    };
+    try {
+      return disk.pointers.get(block);
+    }catch(IOException e) {
+      throw new FileSystemException("DirectoryIndex::read(): " + e);
+    }
+  };
+
+  // Table entry <i>
+  private int entry(int i) throws FileSystemException {
+    return table(tables[i / perBlock])[i % perBlock];
+  };
+
+  // Set table entry <i> to leaf <leaf>
+  private void setEntry(int i, int leaf) throws FileSystemException {
+    int block = tables[i / perBlock];
+    int entries[] = dirty.get(block);
+    if(entries == null) {
+      // Change a copy: the cached entries stay those on the disk until
+      // flush() writes the new ones
+      entries = table(block).clone();
+      dirty.put(block, entries);
+    };
+    entries[i % perBlock] = leaf;
+  };
+
+  // Write the changed table blocks
+  private void flush() throws FileSystemException {
+    try {
+      for(Map.Entry<Integer, int[]> e: dirty.entrySet()) {
+        disk.pointers.write(e.getKey(), e.getValue());
+      };
+    }catch(IOException e) {
+      throw new FileSystemException("DirectoryIndex::write(): " + e);
+    }
+    dirty.clear();
+  };
+};
@@ -1,36 +1,554 @@
-// Class that simulates the disk.  The disk is a randomaccess file
-// that contains the bytes necessary to represent all blocks.
+// Class that simulates the disk.  The bytes of all blocks are held by a
+// BlockDevice (an in-memory array, a RandomAccessFile, a FileChannel or a
+// memory mapping); the geometry is chosen when the disk is opened.
+// Block reads and writes go through a write-back BlockCache, so repeated
+// accesses to the same blocks do not reach the device.
+//
+// Layout: block 0 is the free block, block 1 the root directory, and
+// blocks [journalStart, journalStart + journalBlocks) hold the metadata
+// journal.  Disks too large for a single bitmap block continue the bitmap
+// in the bitmapBlocks - 1 blocks that follow the journal, and the
+// reference counts of shared blocks (see RefCount) take the refBlocks
+// blocks after that, followed by the dedupBlocks blocks of the fingerprint
+// index and its ownerBlocks owner pages (see DedupIndex).  Metadata
+// writes made between begin() and end() form one journal transaction.
 
 import java.util.*;
 import java.lang.*;
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
 
 
 class Disk {
   public int numBlocks;               // Number of blocks
   public int blockSize;               // Number of bytes within each block
-  public RandomAccessFile fp;         // Reference to the file
+  public BlockDevice device;          // Storage for the blocks
+  public BlockCache cache;            // Buffer cache (null if disabled)
+  public PointerCache pointers;       // Decoded indirect blocks of large files
+  public ChunkCache chunks;           // Decompressed chunks of compressed files
+  public Journal journal;             // Metadata write-ahead log
+  public int journalStart;            // First block of the journal
+  public int journalBlocks;           // Number of blocks in the journal
+  public int bitmapBlocks;            // Number of blocks in the free block bitmap
+  public int refBlocks;               // Number of blocks of reference counts
+  public int dedupBlocks;             // Number of blocks of the fingerprint index
+  public int ownerBlocks;             // Number of blocks of fingerprint owners
+  public DedupIndex dedup;            // Fingerprints of data blocks
+  public BlockScrubber scrubber;      // Eraser of freed blocks (null if disabled)
   public boolean debug_flag;          // Set if in debuggin mode
 
+  static public long defaultCacheBytes = 1 << 20;
+
+  // Open transaction of each thread (see begin())
+  private ThreadLocal<Journal.Transaction> current = new ThreadLocal<Journal.Transaction>();
+
   /**
    * Disk interface constructor
-   * Exits if there is a file error
+   *
+   * throws UncheckedIOException if:
+   * 1. The disk file cannot be opened
    *
    * @param fname the name of the disk file on the base file system
    * @param bs size of the blocks
    * @param nb number of blocks
    */
   public Disk(String fname, int bs, int nb) {
+    this(fname, bs, nb, false);
+  };
+
+  /**
+   * Disk interface constructor
+   *
+   * throws UncheckedIOException if:
+   * 1. The disk file cannot be opened
+   *
+   * @param fname the name of the disk file on the base file system
+   * @param bs size of the blocks
+   * @param nb number of blocks
+   * @param mapped true to serve block I/O from a memory mapping of the file
+   */
+  public Disk(String fname, int bs, int nb, boolean mapped) {
+    this(openDevice(mapped ? "mmap" : "raf", fname, bs, nb));
+  };
+
+  /**
+   * Disk interface constructor over an already opened device, with a
+   * buffer cache of the default size
+   *
+   * @param dev
+   */
+  public Disk(BlockDevice dev) {
+    this(dev, defaultCacheBytes);
+  };
+
+  /**
+   * Disk interface constructor over an already opened device
+   *
+   * throws IllegalArgumentException if:
+   * 1. A block cannot hold a directory (maxFiles inodes)
+   * 2. There is no room for the journal and at least one data block
+   *
+   * @param dev
+   * @param cacheBytes memory budget of the buffer cache (0 disables it)
+   */
+  public Disk(BlockDevice dev, long cacheBytes) {
     // Remember the disk parameters
-    blockSize = bs;
-    numBlocks = nb;
+    blockSize = dev.blockSize();
+    numBlocks = dev.numBlocks();
+    device = dev;
+    cache = cacheBytes > 0 ? new BlockCache(dev, cacheBytes) : null;
+    pointers = new PointerCache(this, 256);
+    chunks = new ChunkCache(64);
     debug_flag = false;
+
+    // The journal follows the root directory; larger disks get a longer log
+    journalStart = 2;
+    journalBlocks = Math.max(8, Math.min(1024, numBlocks / 16));
+    bitmapBlocks = (int) ((numBlocks + 8L * blockSize - 1) / (8L * blockSize));
+    refBlocks = (int) ((2L * numBlocks + blockSize - 1) / blockSize);
+    // Room for a fingerprint of every other block, and an owner of each
+    int perBlock = blockSize / DedupIndex.ENTRY;
+    dedupBlocks = Math.max(1, (numBlocks + 2 * perBlock - 1) / (2 * perBlock));
+    ownerBlocks = (int) ((4L * numBlocks + blockSize - 1) / blockSize);
+    journal = new Journal(dev, journalStart, journalBlocks);
+    if(cache != null) {
+      cache.journal = journal;
+    };
+
+    if(blockSize < Block.maxFiles * Inode.size(Block.nameSize, Block.maxFileBlock)) {
+      throw new IllegalArgumentException("Block size " + blockSize + " is too small for a directory");
+    };
+    if(numBlocks <= firstDataBlock()) {
+      throw new IllegalArgumentException("Cannot address " + numBlocks + " blocks of " + blockSize + " bytes");
+    };
+    dedup = new DedupIndex(this, 64);
+  };
+
+  /**
+   * Open a block device
+   *
+   * throws UncheckedIOException if:
+   * 1. The disk file cannot be opened
+   *
+   * @param kind see BlockDevice.open()
+   * @param fname
+   * @param bs
+   * @param nb
+   * @return
+   * @throws UncheckedIOException
+   */
+  static public BlockDevice openDevice(String kind, String fname, int bs, int nb) {
     try {
-      // Open the disk file in r/w mode
-      fp = new RandomAccessFile(fname, "rw");
-    }catch(FileNotFoundException e) {
-      System.out.println("Disk(): FileNotFoundException " + e);
-      System.exit(1);
+      return BlockDevice.open(kind, fname, bs, nb);
+    }catch(IOException e) {
+      throw new UncheckedIOException("Disk::openDevice(): " + fname, e);
+    }
+  };
+
+  /**
+   * Return = the first block that is not reserved by the disk layout
+   *
+   * @return
+   */
+  public int firstDataBlock() {
+    return journalStart + journalBlocks + bitmapBlocks - 1 + refBlocks + dedupBlocks + ownerBlocks;
+  };
+
+  /**
+   * Return = the disk block that holds block <i> of the free block bitmap
+   *
+   * @param i
+   * @return
+   */
+  public int bitmapBlock(int i) {
+    return i == 0 ? 0 : journalStart + journalBlocks + i - 1;
+  };
+
+  /**
+   * Return = the disk block that holds page <i> of the reference counts
+   *
+   * @param i
+   * @return
+   */
+  public int refBlock(int i) {
+    return journalStart + journalBlocks + bitmapBlocks - 1 + i;
+  };
+
+  /**
+   * Return = the disk block that holds block <i> of the fingerprint index
+   *
+   * @param i
+   * @return
+   */
+  public int dedupBlock(int i) {
+    return refBlock(refBlocks) + i;
+  };
+
+  /**
+   * Return = the disk block that holds page <i> of the fingerprint owners
+   *
+   * @param i
+   * @return
+   */
+  public int ownerBlock(int i) {
+    return dedupBlock(dedupBlocks) + i;
+  };
+
+  /**
+   * Replay the journal after opening the disk.  A disk that was not
+   * formatted with the current layout is left alone (see
+   * Journal.isFormatted()).
+   *
+   * throws FileSystemException if:
+   * 1. There is an i/o error
+   *
+   * @throws FileSystemException
+   */
+  public void mount() throws FileSystemException {
+    try {
+      int n = journal.recover();
+      debug("Journal: replayed " + n + " records");
+    }catch(IOException e) {
+      throw new FileSystemException("Disk::mount(): " + e);
+    };
+  };
+
+  /**
+   * Open a metadata transaction for the calling thread.  Every
+   * writeMetadata() until end() belongs to it.
+   */
+  public void begin() {
+    current.set(new Journal.Transaction());
+  };
+
+  /**
+   * Commit the calling thread's transaction to the journal.  The
+   * transaction is not durable until force() is called with the
+   * returned LSN.  If it cannot be logged, it is aborted (see abort()).
+   *
+   * Return = the LSN of the transaction (0 if there is nothing to force)
+   *
+   * throws FileSystemException if:
+   * 1. The transaction cannot be logged
+   * 2. There is a write error (disk without a cache)
+   *
+   * @return
+   * @throws FileSystemException
+   */
+  public long end() throws FileSystemException {
+    Journal.Transaction tx = current.get();
+    current.remove();
+    if(tx == null) {
+      return 0;
+    };
+    if(tx.images.isEmpty()) {
+      scrubLater(tx, 0);
+      return 0;
+    };
+
+    long lsn;
+    try {
+      // A block whose fingerprint was forgotten may be reused by this
+      // transaction: the force that makes it durable must carry the dirty
+      // mark of the fingerprint index with it
+      dedup.mark();
+      lsn = journal.commit(tx);
+    }catch(IOException e) {
+      // Nothing was logged, so the new images must not reach the disk
+      rollback(tx);
+      throw new FileSystemException("Disk::end(): " + e);
+    };
+    scrubLater(tx, lsn);
+    if(cache != null) {
+      for(int block: tx.images.keySet()) {
+        cache.unpin(block, lsn);
+      };
+      return lsn;
+    };
+
+    // Without a cache the home blocks are written as soon as the log is durable
+    try {
+      journal.force(lsn);
+      for(Map.Entry<Integer, byte[]> e: tx.images.entrySet()) {
+        device.write(e.getKey(), e.getValue(), 0);
+      };
+    }catch(IOException e) {
+      throw new FileSystemException("Disk::end(): " + e);
+    };
+    return 0;
+  };
+
+  /**
+   * Abandon the calling thread's transaction: nothing is logged, and the
+   * metadata blocks it wrote get back the contents they had before it
+   * began.  Cached pointer blocks and chunks, which may have been built
+   * from its images, are forgotten.  Does nothing if there is no open
+   * transaction.
+   */
+  public void abort() {
+    Journal.Transaction tx = current.get();
+    current.remove();
+    if(tx != null) {
+      rollback(tx);
+    };
+  };
+
+  // Undo the writes of <tx>, which has not been committed
+  private void rollback(Journal.Transaction tx) {
+    if(cache != null) {
+      for(Map.Entry<Integer, byte[]> e: tx.before.entrySet()) {
+        cache.restore(e.getKey(), e.getValue());
+      };
+    };
+    pointers.clear();
+    chunks.clear();
+  };
+
+  /**
+   * Record that the blocks [start, start+length) have been freed.  The
+   * journal stops writing them back once the transaction that freed them
+   * is logged.  If scrubbing is enabled they are erased in the
+   * background, after that transaction (if any) is durable.  Cached
+   * chunks that start there, and their fingerprints, are forgotten.
+   *
+   * @param start
+   * @param length
+   */
+  public void freed(int start, int length) {
+    chunks.forget(start, length);
+    dedup.forget(start, length);
+    Journal.Transaction tx = current.get();
+    if(tx != null) {
+      tx.freed.add(new int[]{start, length});
+    }else if(scrubber != null) {
+      scrubber.submit(start, length, 0);
+    };
+  };
+
+  // Hand the extents freed by <tx> to the scrubber
+  private void scrubLater(Journal.Transaction tx, long lsn) {
+    if(scrubber != null) {
+      for(int[] e: tx.freed) {
+        scrubber.submit(e[0], e[1], lsn);
+      };
+    };
+  };
+
+  /**
+   * Erase free block <block>: drop it from the cache, and discard it on
+   * the device or overwrite it with <zero>.
+   *
+   * throws IOException if:
+   * 1. There is a write error
+   *
+   * @param block
+   * @param zero a block of zeros
+   * @throws IOException
+   */
+  public void scrub(int block, byte[] zero) throws IOException {
+    if(cache != null) {
+      cache.drop(block);
+    };
+    if(!device.discard(block, 1)) {
+      device.write(block, zero, 0);
+    };
+  };
+
+  /**
+   * Wait until the journal is durable up to <lsn> (as returned by end()).
+   *
+   * throws FileSystemException if:
+   * 1. There is a write error
+   *
+   * @param lsn
+   * @throws FileSystemException
+   */
+  public void force(long lsn) throws FileSystemException {
+    if(lsn == 0) {
+      return;
+    };
+    try {
+      journal.force(lsn);
+    }catch(IOException e) {
+      throw new FileSystemException("Disk::force(): " + e);
+    };
+  };
+
+  /**
+   * Read disk block <block> into <buf>.  <buf> must hold at least
+   * blockSize bytes.
+   *
+   * throws IOException if:
+   * 1. There is a read error
+   *
+   * @param block
+   * @param buf
+   * @throws IOException
+   */
+  public void readBlock(int block, byte[] buf) throws IOException {
+    Journal.Transaction tx = current.get();
+    if(cache == null && tx != null && tx.images.containsKey(block)) {
+      // Uncommitted metadata only lives in the transaction
+      System.arraycopy(tx.images.get(block), 0, buf, 0, blockSize);
+    }else if(cache != null) {
+      cache.read(block, buf, 0);
+    }else{
+      device.read(block, buf, 0);
+    };
+  };
+
+  /**
+   * Read the <count> consecutive blocks that start at <block> into
+   * buf[off ... off+count*blockSize-1], using as few device requests as
+   * possible.
+   *
+   * throws IOException if:
+   * 1. There is a read error
+   *
+   * @param block
+   * @param count
+   * @param buf
+   * @param off
+   * @throws IOException
+   */
+  public void readBlocks(int block, int count, byte[] buf, int off) throws IOException {
+    if(cache != null) {
+      cache.read(block, count, buf, off);
+    }else{
+      device.read(block, count, buf, off);
+    };
+  };
+
+  /**
+   * Copy file data into <dst>, starting <skip> bytes into block <block>,
+   * until <dst> is full.  The bytes go from the cache frames or the
+   * device straight into <dst>, with no intermediate array.
+   *
+   * throws IOException if:
+   * 1. There is a read error
+   *
+   * @param block
+   * @param skip
+   * @param dst
+   * @throws IOException
+   */
+  public void readBlocks(int block, int skip, ByteBuffer dst) throws IOException {
+    if(cache != null) {
+      cache.read(block, skip, dst);
+    }else{
+      device.read(block, skip, dst);
+    };
+  };
+
+  /**
+   * Write <length> bytes of file data, starting <skip> bytes into block
+   * <block>, to <target>.  Blocks whose device copy is up to date are
+   * sent by the device itself (FileChannel.transferTo() for an image
+   * file); blocks that are dirty in the cache are copied from their frame.
+   *
+   * throws IOException if:
+   * 1. There is a read error or <target> cannot be written
+   *
+   * @param block
+   * @param skip
+   * @param length
+   * @param target
+   * @throws IOException
+   */
+  public void transferTo(int block, int skip, int length, WritableByteChannel target) throws IOException {
+    while(length > 0) {
+      int blocks = (int) ((skip + (long) length + blockSize - 1) / blockSize);
+      int clean = cache == null ? blocks : cache.clean(block, blocks);
+      int n;
+      if(clean > 0) {
+        n = (int) Math.min(length, (long) clean * blockSize - skip);
+        device.transferTo(block, skip, n, target);
+        block += clean;
+      }else{
+        n = Math.min(length, blockSize - skip);
+        ByteBuffer buf = ByteBuffer.allocate(n);
+        cache.read(block, skip, buf);
+        buf.flip();
+        while(buf.hasRemaining()) {
+          target.write(buf);
+        };
+        block++;
+      };
+      length -= n;
+      skip = 0;
+    };
+  };
+
+  /**
+   * Write the first blockSize bytes of <buf> to disk block <block>.
+   * The bytes are not guaranteed to reach the disk until flush() is called.
+   * The fingerprint of the block, if it had one, no longer holds.
+   *
+   * throws IOException if:
+   * 1. There is a write error
+   *
+   * @param block
+   * @param buf
+   * @throws IOException
+   */
+  public void writeBlock(int block, byte[] buf) throws IOException {
+    dedup.forget(block);
+    if(cache != null) {
+      cache.write(block, buf, 0);
+    }else{
+      device.write(block, buf, 0);
+    };
+  };
+
+  /**
+   * Write a metadata block.  Inside a transaction the image is logged to
+   * the journal when the transaction ends, and it does not reach its home
+   * location before the log record is durable.  Outside a transaction
+   * (while the disk is formatted) this is an ordinary writeBlock().
+   *
+   * throws IOException if:
+   * 1. There is a write error
+   *
+   * @param block
+   * @param buf
+   * @throws IOException
+   */
+  public void writeMetadata(int block, byte[] buf) throws IOException {
+    Journal.Transaction tx = current.get();
+    if(tx == null) {
+      writeBlock(block, buf);
+      return;
+    };
+
+    boolean first = !tx.images.containsKey(block);
+    if(first && cache != null) {
+      tx.before.put(block, cache.peek(block));
+    };
+    tx.images.put(block, Arrays.copyOf(buf, blockSize));
+    if(cache != null) {
+      cache.write(block, buf, 0, first);
+    };
+  };
+
+  /**
+   * Force all written blocks out of the cache and onto the device, the
+   * fingerprint index included.
+   *
+   * throws FileSystemException if:
+   * 1. There is a write error
+   *
+   * @throws FileSystemException
+   */
+  public void flush() throws FileSystemException {
+    dedup.seal();
+    try {
+      if(cache != null) {
+        cache.flush();
+      };
+      device.flush();
+    }catch(IOException e) {
+      throw new FileSystemException("Disk::flush(): " + e);
     };
   };
 
@@ -49,9 +567,17 @@ class Disk {
   /**
    * Format the disk.
    * Effects:
-   * 1. Initializes the first block (block 0) as the free block(the first two blocks are marked as not free)
+   * 1. Initializes the free block bitmap (the blocks below
+   *    firstDataBlock() are marked as not free)
    * 2. Initializes block 1 as the root directory; it is empty
-   * 3. Clears the remaining blocks
+   * 3. Initializes an empty journal
+   *
+   * The data blocks are not written: a block gets its contents when a
+   * file or directory is given it, so formatting a device that allocates
+   * on first write (see MemoryBlockDevice) costs almost nothing.  They
+   * are discarded instead, which gives back the memory of a
+   * MemoryBlockDevice and shortens an image file to its metadata, so
+   * formatting does not depend on the size of the image.
    *
    * throws FileSystemException if:
    * 1. There is a disk write error
@@ -59,25 +585,25 @@ class Disk {
    * @throws FileSystemException
    */
   public void format() throws FileSystemException {
-    int i;
+    pointers.clear();
+    chunks.clear();
 
     // Master free space record
     FreeBlock fb = new FreeBlock(this);
     // Initialize free space
-    fb.buffer[0] = (byte) 0xfc;
-    for(i = 1; i < blockSize; ++i) {
-      fb.buffer[i] = (byte) 0xff;
-    };
-    fb.write(0);
+    fb.format();
 
     // Root directory.
     DirectoryBlock dir = new DirectoryBlock(this);
     dir.write(1);
 
-    // Empty data block for remaining blocks.
-    DataBlock db = new DataBlock(this);
-    for(i = 2; i < numBlocks; ++i) {
-      db.write(i);
+    // Empty journal, once everything else is on the disk
+    flush();
+    try {
+      device.discard(firstDataBlock(), numBlocks - firstDataBlock());
+      journal.format();
+    }catch(IOException e) {
+      throw new FileSystemException("Disk::format(): " + e);
     };
   };
 };
\ No newline at end of file
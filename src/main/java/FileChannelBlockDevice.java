@@ -0,0 +1,98 @@
+// Block device over a FileChannel using positional reads and writes, so
+// there is no shared file pointer and no separate seek per access.
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+
+class FileChannelBlockDevice implements BlockDevice {
+  private int blockSize;
+  private int numBlocks;
+  private FileChannel channel;
+
+  public FileChannelBlockDevice(String fname, int bs, int nb) throws IOException {
+    blockSize = bs;
+    numBlocks = nb;
+    channel = FileChannel.open(Paths.get(fname), StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+  };
+
+  public int blockSize() {
+    return blockSize;
+  };
+
+  public int numBlocks() {
+    return numBlocks;
+  };
+
+  public void read(int block, byte buf[], int off) throws IOException {
+    read(block, 1, buf, off);
+  };
+
+  // A run of blocks is a single positional read
+  public void read(int block, int count, byte buf[], int off) throws IOException {
+    ByteBuffer dst = ByteBuffer.wrap(buf, off, count * blockSize);
+    long pos = (long) block * blockSize;
+    while(dst.hasRemaining()) {
+      int n = channel.read(dst, pos);
+      if(n < 0) {
+        // Past the end of the file
+        Arrays.fill(buf, dst.position(), dst.limit(), (byte) 0);
+        break;
+      };
+      pos += n;
+    };
+  };
+
+  // The channel reads straight into the buffer
+  public void read(int block, int skip, ByteBuffer dst) throws IOException {
+    long pos = (long) block * blockSize + skip;
+    while(dst.hasRemaining()) {
+      int n = channel.read(dst, pos);
+      if(n < 0) {
+        // Past the end of the file
+        while(dst.hasRemaining()) {
+          dst.put((byte) 0);
+        };
+        break;
+      };
+      pos += n;
+    };
+  };
+
+  public void transferTo(int block, int skip, int length, WritableByteChannel target) throws IOException {
+    BlockDevice.transfer(channel, (long) block * blockSize + skip, length, target);
+  };
+
+  public void write(int block, byte buf[], int off) throws IOException {
+    ByteBuffer src = ByteBuffer.wrap(buf, off, blockSize);
+    long pos = (long) block * blockSize;
+    while(src.hasRemaining()) {
+      pos += channel.write(src, pos);
+    };
+  };
+
+  // Java cannot punch holes in a file, but blocks at the end of the
+  // image can be released by shortening the file
+  public synchronized boolean discard(int block, int count) throws IOException {
+    long from = (long) block * blockSize;
+    if(from >= channel.size()) {
+      return true;
+    };
+    if(from + (long) count * blockSize >= channel.size()) {
+      channel.truncate(from);
+      return true;
+    };
+    return false;
+  };
+
+  public void flush() throws IOException {
+    channel.force(false);
+  };
+
+  public void close() throws IOException {
+    channel.close();
+  };
+};
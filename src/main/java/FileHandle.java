@@ -0,0 +1,152 @@
+// An open file, as returned by FileSystemAbstract.open().  The handle
+// remembers where the file's inode lives (the directory block and the
+// entry within it), so its methods do not resolve the path again.  If the
+// entry has moved since (the directory has been split or the file
+// removed and created again) the handle finds it again by name.
+
+import java.util.*;
+import java.lang.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+
+abstract class FileHandle {
+
+  /**
+   * Return = the length of the file in bytes
+   *
+   * throws FileSystemException if:
+   * 1. The file no longer exists
+   * 2. There is a read error
+   *
+   * @return
+   * @throws FileSystemException
+   */
+  abstract public int size() throws FileSystemException;
+
+  /**
+   * Read <length> bytes from the file starting at position <offset>
+   *
+   * Return = the array of <length> bytes (normally)
+   *        = the array of size-offset bytes (if smaller than length)
+   *        = null if offset is passed the end of the file.
+   *
+   * throws FileSystemException if:
+   * 1. The file no longer exists
+   * 2. There is a read error
+   *
+   * @param offset
+   * @param length
+   * @return
+   * @throws FileSystemException
+   */
+  abstract public byte[] read(int offset, int length) throws FileSystemException;
+
+  /**
+   * Fill <dst> with the bytes of the file starting at position <offset>
+   * (see FileSystemAbstract.read(String, int, ByteBuffer)).
+   *
+   * Return = the number of bytes read
+   *        = -1 if offset is past the end of the file.
+   *
+   * throws FileSystemException if:
+   * 1. The file no longer exists
+   * 2. There is a read error
+   *
+   * @param offset
+   * @param dst
+   * @return
+   * @throws FileSystemException
+   */
+  abstract public int read(int offset, ByteBuffer dst) throws FileSystemException;
+
+  /**
+   * Write <length> bytes of the file, starting at position <offset>, to
+   * <target> (for instance a FileChannel of the base file system).
+   * Contiguous runs of blocks go from the disk image to <target> without
+   * passing through the heap (FileChannel.transferTo()); the rest is sent
+   * with gathering writes.
+   *
+   * Return = the number of bytes written (fewer than length at the end
+   *          of the file)
+   *        = -1 if offset is past the end of the file.
+   *
+   * throws FileSystemException if:
+   * 1. The file no longer exists
+   * 2. There is a read error or <target> cannot be written
+   *
+   * @param offset
+   * @param length
+   * @param target
+   * @return
+   * @throws FileSystemException
+   */
+  abstract public int transferTo(int offset, int length, GatheringByteChannel target) throws FileSystemException;
+
+  /**
+   * Append buf[0 ... bufLen-1] to the end of the file (see
+   * FileSystemAbstract.append()).
+   *
+   * throws FileSystemException if:
+   * 1. The file no longer exists
+   * 2. The file system is full
+   * 3. The file is too long to be represented by the inode
+   *
+   * @param buf
+   * @param bufLen
+   * @throws FileSystemException
+   */
+  abstract public void append(byte[] buf, int bufLen) throws FileSystemException;
+
+  /**
+   * Return = a SeekableByteChannel over the file, positioned at its first
+   *          byte.  Closing the channel does not close the handle.
+   *
+   * @return
+   */
+  abstract public SeekableByteChannel channel();
+
+  /**
+   * Open a channel that appends to the file, buffering the bytes and
+   * updating the inode only when it is flushed or closed (see
+   * AppendChannel).
+   *
+   * Return = the channel
+   *
+   * throws FileSystemException if:
+   * 1. The file no longer exists
+   * 2. There is a read error
+   *
+   * @return
+   * @throws FileSystemException
+   */
+  abstract public AppendChannel appendChannel() throws FileSystemException;
+
+  /**
+   * Write buf[0 ... bufLen-1] to the file starting at position <offset>.
+   * Bytes past the end of the file are appended; if <offset> is past the
+   * end, the gap is filled with zeros.
+   *
+   * throws FileSystemException if:
+   * 1. The file no longer exists
+   * 2. The file system is full
+   * 3. The file is too long to be represented by the inode
+   *
+   * @param offset
+   * @param buf
+   * @param bufLen
+   * @throws FileSystemException
+   */
+  abstract public void write(int offset, byte[] buf, int bufLen) throws FileSystemException;
+
+  /**
+   * Release the handle.  It cannot be used afterwards.
+   *
+   * throws FileSystemException if:
+   * 1. An append channel of the handle is still open
+   *
+   * @throws FileSystemException
+   */
+  abstract public void close() throws FileSystemException;
+};
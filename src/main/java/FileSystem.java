@@ -1,171 +1,1380 @@
+import java.util.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
 class FileSystem extends FileSystemAbstract {
-  public FileSystem() {
+  // Shortest run of blocks that transferTo() sends without copying
+  private static final int GATHER_RUN = 4;
+
+  // First block of the directory found by goToParentDirectory()
+  private int parent;
+
+  public FileSystem() throws FileSystemException {
+    db = new DirectoryBlock(disk);
+  }
+
+  public FileSystem(Disk dsk) throws FileSystemException {
+    super(dsk);
     db = new DirectoryBlock(disk);
   }
 
   @Override
-  public void list(String name) throws FileSystemException {
-    db.read(1);
+  public synchronized void list(String name) throws FileSystemException {
+    checkFormatted();
     if (name == null || name.length() == 0) {
-      db.list("");
+      db.listAll(1, "");
       return;
     }
 
-    String arr[] = name.split("/");
-
-    for(String dir: arr) {
-      int index = db.findName(dir);
-      if (index == -1) {
-        throw new FileSystemException("The parent directory does not exist");
-      }
-      db.read(db.inodes[index].blockPtr[0]);
+    String entryName = goToParentDirectory(name);
+    DentryCache.Dentry d = resolve(parent, entryName, 0, entryName.length());
+    if (!d.exists || d.file) {
+      throw new FileSystemException("The parent directory does not exist");
     }
 
-    db.list(name);
+    db.listAll(d.child, name);
   }
 
   @Override
   public void createDir(String name) throws FileSystemException {
-    String entryName = goToParentDirectory(name);
+    transaction(() -> {
+      String entryName = goToParentDirectory(name);
 
-    if (db.findName(entryName) != -1) {
-      throw new FileSystemException("Entry already exist");
-    }
+      if (findEntry(entryName) != -1) {
+        throw new FileSystemException("Entry already exist");
+      }
 
-    checkDirectoryName(entryName);
+      checkDirectoryName(entryName);
 
-    int index = db.AllocFree(entryName, false);
-    free_block.AllocBlocks(db.inodes[index].blockPtr, 0, 1);
+      int index = db.insert(parent, entryName, false, free_block);
+      dentries.remove(parent, entryName);
+      db.inodes[index].setBlockPtr(0, free_block.AllocExtents(0, 1)[0][0]);
 
-    DirectoryBlock dir = new DirectoryBlock(disk);
-    dir.write(db.inodes[index].blockPtr[0]);
+      DirectoryBlock dir = new DirectoryBlock(disk);
+      dir.write(db.inodes[index].getBlockPtr(0));
 
-    db.write(db.block_num);
+      db.write(db.block_num);
+    });
   }
 
   @Override
   public void deleteDir(String name) throws FileSystemException {
-    Boolean exist = this.existsDirectory(name);
-    if (!exist) {
-      throw new FileSystemException("Directory not exists.");
-    }
-    String entryName = goToParentDirectory(name);
-    int index = db.findName(entryName);
-    db.read(db.inodes[index].blockPtr[0]);
-    for(int i = 0; i < DirectoryBlock.maxFiles; ++i) {
-      if(db.inodes[i].used_p) {
+    transaction(() -> {
+      Boolean exist = this.existsDirectory(name);
+      if (!exist) {
+        throw new FileSystemException("Directory not exists.");
+      }
+      String entryName = goToParentDirectory(name);
+      int index = findEntry(entryName);
+      int root = db.inodes[index].getBlockPtr(0);
+      if (db.numEntries(root) != 0) {
         throw new FileSystemException("The directory is not empty");
-      };
-    };
-    entryName = goToParentDirectory(name);
-    index = db.findName(entryName);
-    free_block.DeallocBlocks(db.inodes[index].blockPtr, 1);
-    db.DeallocEntry(index);
-    db.write(db.block_num);
+      }
+      int[][] blocks = db.blocks(root);
+      dentries.remove(parent, entryName);
+      dentries.removeDirectory(root);
+      index = findEntry(entryName);
+      free_block.DeallocExtents(blocks);
+      db.DeallocEntry(index);
+      db.write(db.block_num);
+    });
   }
 
   @Override
   public void create(String name) throws FileSystemException {
-    checkDirectoryName(name);
-    if(existsDirectory(name)) {
-      // original was a directory
-      throw new FileSystemException(name + " is a directory.");
-    }
+    transaction(() -> {
+      checkDirectoryName(name);
+      if(existsDirectory(name)) {
+        // original was a directory
+        throw new FileSystemException(name + " is a directory.");
+      }
 
-    String entryName = goToParentDirectory(name);
+      String entryName = goToParentDirectory(name);
 
-    int index = db.findName(entryName);
-    if (index != -1) {
-      db.inodes[index].size = 0;
-    } else {
-      db.AllocFree(entryName, true);
-    }
-    db.write(db.block_num);
+      int index = findEntry(entryName);
+      if (index != -1) {
+        free_block.DeallocExtents(new BlockMap(disk, free_block, db.inodes[index]).clear());
+      } else {
+        db.insert(parent, entryName, true, free_block);
+        dentries.remove(parent, entryName);
+      }
+      db.write(db.block_num);
+    });
   }
 
   @Override
   public void delete(String name) throws FileSystemException {
-    Boolean exist = this.existsFile(name);
-    if (!exist) {
-      throw new FileSystemException("File not exists.");
-    }
-    String entryName = goToParentDirectory(name);
-    int index = db.findName(entryName);
-    db.DeallocEntry(index);
-    db.write(db.block_num);
+    transaction(() -> {
+      Boolean exist = this.existsFile(name);
+      if (!exist) {
+        throw new FileSystemException("File not exists.");
+      }
+      int index = findFile(name);
+      free_block.DeallocExtents(new BlockMap(disk, free_block, db.inodes[index]).clear());
+      dentries.remove(parent, db.inodes[index].getName());
+      db.DeallocEntry(index);
+      db.write(db.block_num);
+    });
+  }
+
+  @Override
+  public synchronized byte[] read(String name) throws FileSystemException {
+    Inode inode = db.inodes[findFile(name)];
+    byte[] bytes = readInode(inode, 0, inode.getSize());
+    return bytes == null ? new byte[0] : bytes;
   }
 
   @Override
-  public byte[] read(String name) throws FileSystemException {
-    return new byte[0];
+  public synchronized byte[] read(String name, int offset, int length) throws FileSystemException {
+    return readInode(db.inodes[findFile(name)], offset, length);
   }
 
   @Override
-  public byte[] read(String name, int offset, int length) throws FileSystemException {
-    return new byte[0];
+  public synchronized int read(String name, int offset, ByteBuffer dst) throws FileSystemException {
+    return readInode(db.inodes[findFile(name)], offset, dst);
   }
 
   @Override
-  public boolean existsFile(String name) throws FileSystemException {
+  public synchronized boolean existsFile(String name) throws FileSystemException {
     String entryName = goToParentDirectory(name);
-    int index = db.findName(entryName);
-    return index != -1 && db.inodes[index].file_p;
+    DentryCache.Dentry d = resolve(parent, entryName, 0, entryName.length());
+    return d.exists && d.file;
   }
 
   @Override
-  public boolean existsDirectory(String name) throws FileSystemException {
+  public synchronized boolean existsDirectory(String name) throws FileSystemException {
     if (name == null || name.length() == 0) {
       throw new FileSystemException("Ill-formed file name: could not be empty");
     }
-    String arr[] = name.split("/");
-    db.read(1);
-    if (arr.length > 1) {
-      for (int i = 0; i < arr.length - 1; i++) {
-        int index = db.findName(arr[i]);
-        if (index == -1 || db.inodes[index].file_p) {
-          return false;
-        }
-        db.read(db.inodes[index].blockPtr[0]);
-      }
-      name = arr[arr.length - 1];
+    int end = trimmedLength(name);
+    parent = parentOf(name, end);
+    if (parent == -1) {
+      return false;
     }
-    int index = db.findName(name);
-    return !(index == -1 || db.inodes[index].file_p);
+    DentryCache.Dentry d = resolve(parent, name, name.lastIndexOf('/', end - 1) + 1, end);
+    return d.exists && !d.file;
   }
 
   @Override
   public void append(String name, byte[] buf, int bufLen) throws FileSystemException {
+    transaction(() -> {
+      appendInode(db, db.inodes[findFile(name)], buf, bufLen);
+    });
+  }
 
+  @Override
+  public synchronized FileHandle open(String name) throws FileSystemException {
+    int index = findFile(name);
+    return new OpenFile(parent, db.inodes[index].getName(), db.block_num, index);
+  }
+
+  @Override
+  public void setCompressed(String name, boolean compressed) throws FileSystemException {
+    transaction(() -> {
+      Inode inode = db.inodes[findFile(name)];
+      if (inode.isCompressed() == compressed) {
+        return;
+      }
+      if (inode.isInline()) {
+        inode.setCompressed(compressed);
+        db.write(db.block_num);
+        return;
+      }
+
+      // Write the bytes to a scratch inode in the new form, which then
+      // takes the place of the old one
+      Inode scratch = new Inode(ByteBuffer.allocate(Inode.size(Block.nameSize, Block.maxFileBlock)), 0,
+          Block.nameSize, Block.maxFileBlock);
+      scratch.Alloc(inode.getName(), true);
+      scratch.setCompressed(compressed);
+      byte[] buf = new byte[4 * ChunkMap.CHUNK * disk.blockSize];
+      try {
+        for (int done = 0; done < inode.getSize(); ) {
+          int n = readInode(inode, done, ByteBuffer.wrap(buf));
+          appendInode(db, scratch, buf, n);
+          done += n;
+        }
+      } catch (FileSystemException e) {
+        free_block.DeallocExtents(new BlockMap(disk, free_block, scratch).clear());
+        throw e;
+      }
+      free_block.DeallocExtents(new BlockMap(disk, free_block, inode).clear());
+      inode.copyFrom(scratch);
+      db.write(db.block_num);
+    });
   }
 
   @Override
   public void move(String name1, String name2) throws FileSystemException {
+    transaction(() -> {
+      // Only the entry moves: the blocks of a file, or the whole tree of a
+      // directory, stay where they are
+      String srcName = goToParentDirectory(name1);
+      int srcParent = parent;
+      int index = findEntry(srcName);
+      if (index == -1) {
+        throw new FileSystemException(name1 + " does not exist.");
+      }
+      srcName = db.inodes[index].getName();
+      boolean file = db.inodes[index].isFile();
+      int root = file ? 0 : db.inodes[index].getBlockPtr(0);
 
+      String target = name2;
+      if (trimmedLength(name2) == 0) {
+        // "/" is the root directory
+        target = srcName;
+      } else if (existsDirectory(name2)) {
+        target = name2.substring(0, trimmedLength(name2)) + "/" + srcName;
+      }
+      checkDirectoryName(target);
+      String entryName = goToParentDirectory(target);
+      if (parent == srcParent && entryName.equals(srcName)) {
+        throw new FileSystemException(name1 + " and " + target + " are the same object.");
+      }
+
+      // The target's parent must not be inside the directory: its
+      // ancestors are known from the parent links of the dentry cache
+      if (!file) {
+        for (int d = parent; d > 1; d = dentries.parentOf(d)) {
+          if (d == root) {
+            throw new FileSystemException(name1 + " is an ancestor of " + target + ".");
+          }
+        }
+      }
+
+      // An existing file is replaced by a file, an empty directory by a
+      // directory
+      int dst = findEntry(entryName);
+      if (dst != -1) {
+        Inode old = db.inodes[dst];
+        if (old.isFile() != file) {
+          throw new FileSystemException(file ? target + " is a directory." : target + " is a file.");
+        }
+        if (file) {
+          free_block.DeallocExtents(new BlockMap(disk, free_block, old).clear());
+        } else {
+          int oldRoot = old.getBlockPtr(0);
+          if (db.numEntries(oldRoot) != 0) {
+            throw new FileSystemException(target + " is not empty.");
+          }
+          int[][] blocks = db.blocks(oldRoot);
+          dentries.removeDirectory(oldRoot);
+          free_block.DeallocExtents(blocks);
+          dst = findEntry(entryName);
+        }
+      } else {
+        dst = db.insert(parent, entryName, file, free_block);
+      }
+
+      // Find the source again: inserting the target may have split its block
+      DirectoryBlock from = new DirectoryBlock(disk);
+      int srcIndex = from.lookup(srcParent, srcName, 0, srcName.length());
+      if (from.block_num == db.block_num) {
+        from = db;
+      }
+      db.inodes[dst].copyFrom(from.inodes[srcIndex]);
+      from.DeallocEntry(srcIndex);
+      if (from != db) {
+        from.write(from.block_num);
+      }
+      db.write(db.block_num);
+
+      dentries.remove(srcParent, srcName);
+      dentries.remove(parent, entryName);
+      if (!file) {
+        dentries.moveDirectory(root, parent);
+      }
+    });
   }
 
   @Override
   public void fileCopy(String fname1, String fname2) throws FileSystemException {
+    transaction(() -> {
+      // The source must be a file
+      String srcName = db.inodes[findFile(fname1)].getName();
+      int srcParent = parent;
 
+      String target = fname2;
+      if (existsDirectory(fname2)) {
+        target = fname2.substring(0, trimmedLength(fname2)) + "/" + srcName;
+      }
+      checkDirectoryName(target);
+      if (existsDirectory(target)) {
+        throw new FileSystemException(target + " is a directory.");
+      }
+      String entryName = goToParentDirectory(target);
+      if (parent == srcParent && entryName.equals(srcName)) {
+        throw new FileSystemException(fname1 + " and " + target + " are the same file.");
+      }
+
+      // The copy replaces an existing file, as create() does
+      int index = findEntry(entryName);
+      if (index != -1) {
+        free_block.DeallocExtents(new BlockMap(disk, free_block, db.inodes[index]).clear());
+      } else {
+        index = db.insert(parent, entryName, true, free_block);
+        dentries.remove(parent, entryName);
+      }
+
+      // Find the source again: inserting the copy may have split its block
+      DirectoryBlock from = new DirectoryBlock(disk);
+      int srcIndex = from.lookup(srcParent, srcName, 0, srcName.length());
+      if (from.block_num == db.block_num) {
+        from = db;
+      }
+      Inode src = from.inodes[srcIndex];
+
+      // The copy points to the same blocks, which become shared, unless
+      // one of them cannot take another reference: then the bytes are
+      // copied
+      Inode copy = db.inodes[index];
+      copy.copyFrom(src);
+      if (!new BlockMap(disk, free_block, copy).share()) {
+        copy.clearBlocks();
+        copyBytes(src, copy);
+      }
+      free_block.flush();
+      db.write(db.block_num);
+    });
   }
 
   @Override
   public void fileAppend(String fname1, String fname2) throws FileSystemException {
+    transaction(() -> {
+      String srcName = db.inodes[findFile(fname1)].getName();
+      int srcParent = parent;
+      Inode dst = db.inodes[findFile(fname2)];
 
+      // Both entries may be in the same block (or be the same entry):
+      // then they must be seen through the same DirectoryBlock
+      DirectoryBlock from = new DirectoryBlock(disk);
+      int srcIndex = from.lookup(srcParent, srcName, 0, srcName.length());
+      if (from.block_num == db.block_num) {
+        from = db;
+      }
+      Inode src = from.inodes[srcIndex];
+      int srcSize = src.getSize();
+      if (srcSize == 0) {
+        return;
+      }
+
+      int bs = disk.blockSize;
+      int full = srcSize / bs;
+      if (dst.getSize() % bs == 0 && !src.isInline() && full > 0 && !src.isCompressed() && !dst.isCompressed()) {
+        BlockMap srcMap = new BlockMap(disk, null, src);
+        int[] blocks = new int[full];
+        for (int i = 0; i < full; i++) {
+          blocks[i] = srcMap.getBlock(i);
+        }
+
+        if (dst.isInline()) {
+          // Empty, since its size is a multiple of the block size
+          dst.clearBlocks();
+          dst.setInline(false);
+        }
+        BlockMap map = new BlockMap(disk, free_block, dst);
+        if (map.numBlocks() + (long) full <= map.maxBlocks() && free_block.refs.canShare(blocks)) {
+          // The whole blocks of the source become shared with the
+          // destination; only the last, partial one is copied
+          for (int b : blocks) {
+            free_block.refs.share(b);
+            map.addExtent(b, 1);
+          }
+          dst.setSize(dst.getSize() + full * bs);
+          map.flush();
+          if (full * bs == srcSize) {
+            db.write(db.block_num);
+            return;
+          }
+          byte[] tail = readInode(src, full * bs, srcSize - full * bs);
+          appendInode(db, dst, tail, tail.length);
+          return;
+        }
+      }
+
+      // Not block aligned, or the blocks cannot be shared: the bytes are
+      // copied
+      copyBytes(src, dst);
+    });
   }
 
+  // Append the bytes of <src> to <dst>, an entry of db
+  private void copyBytes(Inode src, Inode dst) throws FileSystemException {
+    int srcSize = src.getSize();
+    byte[] buf = new byte[64 * disk.blockSize];
+    for (int done = 0; done < srcSize; ) {
+      int n = Math.min(buf.length, srcSize - done);
+      readInode(src, done, ByteBuffer.wrap(buf, 0, n));
+      appendInode(db, dst, buf, n);
+      done += n;
+    }
+  }
+
+  // Position db on the parent directory of <name> and return the index of its file entry
+  private int findFile(String name) throws FileSystemException {
+    String entryName = goToParentDirectory(name);
+    int index = findEntry(entryName);
+    if (index == -1) {
+      throw new FileSystemException(name + " does not exist.");
+    }
+    if (!db.inodes[index].isFile()) {
+      throw new FileSystemException(name + " is a directory.");
+    }
+    return index;
+  }
+
+  // Append buf[0 ... bufLen-1] to <inode>, an entry of <dir>, and write
+  // <dir> back
+  private void appendInode(DirectoryBlock dir, Inode inode, byte[] buf, int bufLen) throws FileSystemException {
+    int bs = disk.blockSize;
+    int size = inode.getSize();
+    byte[] src = buf;
+    int srcLen = bufLen;
+
+    if (inode.isCompressed() && (!inode.isInline() || size + bufLen > inode.inlineCapacity())) {
+      writeChunks(dir, inode, size, buf, bufLen);
+      return;
+    }
+    if (inode.isInline()) {
+      if (size + bufLen <= inode.inlineCapacity()) {
+        // Still small enough to live in the directory entry
+        inode.putInline(size, buf, 0, bufLen);
+        inode.setSize(size + bufLen);
+        dir.write(dir.block_num);
+        return;
+      }
+      // Outgrown: the inline bytes move to blocks with the new ones
+      src = new byte[size + bufLen];
+      inode.getInline(0, src, 0, size);
+      System.arraycopy(buf, 0, src, size, bufLen);
+      srcLen = size + bufLen;
+      inode.clearBlocks();
+      inode.setInline(false);
+      size = 0;
+    }
+
+    BlockMap map = new BlockMap(disk, free_block, inode);
+    int len = Math.min(srcLen, map.maxSize() - size);
+
+    // Allocate the new blocks before any data is written.  A failure from
+    // here on may leave the inode, the bitmap and the indirect blocks half
+    // changed: the transaction rolls them back
+    int have = map.numBlocks();
+    int need = (int) ((size + (long) len + bs - 1) / bs);
+    if (need > have) {
+      int goal = have > 0 ? map.getBlock(have - 1) + 1 : 0;
+      for (int[] e : free_block.AllocExtents(goal, need - have)) {
+        map.addExtent(e[0], e[1]);
+      }
+    }
+
+    // Fill the tail of the last block, then whole new blocks
+    DataBlock data = new DataBlock(disk);
+    DedupIndex dedup = disk.dedup.enabled ? disk.dedup : null;
+    ArrayList<int[]> unused = new ArrayList<int[]>();
+    for (int done = 0; done < len; ) {
+      int pos = size + done;
+      // The old last block may be shared, the new ones are not
+      int block = pos % bs != 0 ? map.writable(pos / bs) : map.getBlock(pos / bs);
+      int n = Math.min(len - done, bs - pos % bs);
+      if (pos % bs != 0) {
+        data.read(block);
+      }
+      System.arraycopy(src, done, data.buffer, pos % bs, n);
+      if (dedup != null && n == bs) {
+        // A whole new block: share an identical one instead of writing it
+        byte[] fp = dedup.fingerprint(data.buffer);
+        int same = dedup.lookup(fp, data.buffer);
+        if (same != 0 && free_block.refs.canShare(same)) {
+          free_block.refs.share(same);
+          unused.addAll(Arrays.asList(map.replace(pos / bs, same)));
+        } else {
+          data.write(block);
+          dedup.insert(fp, block);
+        }
+      } else {
+        data.write(block);
+      }
+      done += n;
+    }
+
+    inode.setSize(size + len);
+    map.flush();
+    free_block.DeallocExtents(unused.toArray(new int[unused.size()][]));
+    dir.write(dir.block_num);
+
+    if (len < srcLen) {
+      throw new FileSystemException("File too long: only " + (len - (srcLen - bufLen)) + " of " + bufLen + " bytes appended.");
+    }
+  }
+
+  // Write buf[0 ... bufLen-1] to <inode>, an entry of <dir>, at <offset>:
+  // the bytes inside the file are overwritten in place, the rest (and any
+  // gap before <offset>, as zeros) is appended
+  private void writeInode(DirectoryBlock dir, Inode inode, int offset, byte[] buf, int bufLen) throws FileSystemException {
+    if (inode.isCompressed() && (!inode.isInline() || offset + (long) bufLen > inode.inlineCapacity())) {
+      writeChunks(dir, inode, offset, buf, bufLen);
+      return;
+    }
+    if (offset > inode.getSize()) {
+      // The gap is appended in pieces, so a write far past the end does
+      // not need a buffer as large as the gap
+      byte[] zero = new byte[(int) Math.min(offset - inode.getSize(), 64L * disk.blockSize)];
+      while (offset > inode.getSize()) {
+        appendInode(dir, inode, zero, Math.min(offset - inode.getSize(), zero.length));
+      }
+    }
+    int n = Math.min(bufLen, inode.getSize() - offset);
+    boolean changed = inode.isInline();
+    if (inode.isInline()) {
+      inode.putInline(offset, buf, 0, n);
+    } else {
+      // Shared blocks are copied before they are written
+      BlockMap map = new BlockMap(disk, free_block, inode);
+      DataBlock data = new DataBlock(disk);
+      int bs = disk.blockSize;
+      for (int done = 0; done < n; ) {
+        int pos = offset + done;
+        int block = map.writable(pos / bs);
+        int m = Math.min(n - done, bs - pos % bs);
+        if (m < bs) {
+          data.read(block);
+        }
+        System.arraycopy(buf, done, data.buffer, pos % bs, m);
+        data.write(block);
+        done += m;
+      }
+      map.flush();
+      changed = map.copied();
+    }
+    if (n < bufLen) {
+      appendInode(dir, inode, Arrays.copyOfRange(buf, n, bufLen), bufLen - n);
+    } else if (changed) {
+      dir.write(dir.block_num);
+    }
+  }
+
+  // Write buf[0 ... bufLen-1] to the compressed <inode>, an entry of <dir>,
+  // at <offset>, and write <dir> back.  Every chunk the bytes fall in is
+  // stored again, and a gap before <offset> is filled with zeros.  Inline
+  // bytes move to the first chunk.
+  private void writeChunks(DirectoryBlock dir, Inode inode, int offset, byte[] buf, int bufLen) throws FileSystemException {
+    ChunkMap chunks = new ChunkMap(disk, free_block, inode);
+    if ((long) offset + bufLen > chunks.maxSize()) {
+      throw new FileSystemException("File too long (more than " + chunks.maxSize() + " bytes).");
+    }
+    int size = inode.getSize();
+    if (inode.isInline()) {
+      byte[] old = new byte[size];
+      inode.getInline(0, old, 0, size);
+      inode.clearBlocks();
+      inode.setInline(false);
+      chunks = new ChunkMap(disk, free_block, inode);
+      if (size > 0) {
+        chunks.write(0, old, size);
+      }
+      inode.setSize(size);
+    }
+
+    int cs = chunks.chunkSize();
+    int end = offset + bufLen;
+    for (int c = Math.min(offset, size) / cs; c * (long) cs < end; c++) {
+      int start = c * cs;
+      int oldLen = Math.max(0, Math.min(cs, size - start));
+      int len = Math.max(oldLen, Math.min(cs, end - start));
+      byte[] data = new byte[len];
+      if (oldLen > 0 && (offset > start || end < start + oldLen)) {
+        // Part of the old bytes stay
+        System.arraycopy(chunks.read(c), 0, data, 0, oldLen);
+      }
+      int from = Math.max(offset, start);
+      int to = Math.min(end, start + len);
+      if (from < to) {
+        System.arraycopy(buf, from - offset, data, from - start, to - from);
+      }
+      chunks.write(c, data, len);
+    }
+    inode.setSize(Math.max(size, end));
+    dir.write(dir.block_num);
+  }
+
+  // Shorten <inode>, an entry of <dir>, to <size> bytes and release the
+  // blocks past the end.  Nothing is done if the file is not longer.
+  private void truncateInode(DirectoryBlock dir, Inode inode, int size) throws FileSystemException {
+    if (size >= inode.getSize()) {
+      return;
+    }
+    if (inode.isCompressed() && !inode.isInline()) {
+      new ChunkMap(disk, free_block, inode).truncate(size);
+    } else if (!inode.isInline()) {
+      BlockMap map = new BlockMap(disk, free_block, inode);
+      int[][] unused = map.truncate((int) ((size + (long) disk.blockSize - 1) / disk.blockSize));
+      map.flush();
+      free_block.DeallocExtents(unused);
+    }
+    inode.setSize(size);
+    dir.write(dir.block_num);
+  }
+
+  // Read <length> bytes of <inode> starting at <offset>.  Returns null
+  // past the end of the file.
+  private byte[] readInode(Inode inode, int offset, int length) throws FileSystemException {
+    if (offset >= inode.getSize()) {
+      return null;
+    }
+    byte[] out = new byte[Math.min(length, inode.getSize() - offset)];
+    readInode(inode, offset, ByteBuffer.wrap(out));
+    return out;
+  }
+
+  // Fill <dst> with the bytes of <inode> starting at <offset>, with one
+  // disk request per contiguous run of blocks.  Returns the number of
+  // bytes read, -1 past the end of the file.
+  private int readInode(Inode inode, int offset, ByteBuffer dst) throws FileSystemException {
+    if (offset >= inode.getSize()) {
+      return -1;
+    }
+    int n = Math.min(dst.remaining(), inode.getSize() - offset);
+    if (inode.isInline()) {
+      // The bytes are in the directory block that was just read
+      inode.getInline(offset, dst, n);
+      return n;
+    }
+    if (inode.isCompressed()) {
+      ChunkMap chunks = new ChunkMap(disk, null, inode);
+      int cs = chunks.chunkSize();
+      for (int pos = offset; pos < offset + n; ) {
+        int m = Math.min(offset + n - pos, cs - pos % cs);
+        dst.put(chunks.read(pos / cs), pos % cs, m);
+        pos += m;
+      }
+      return n;
+    }
+    BlockMap map = new BlockMap(disk, null, inode);
+    int bs = disk.blockSize;
+    int last = (offset + n - 1) / bs;
+    int limit = dst.limit();
+
+    try {
+      for (int logical = offset / bs, pos = offset; logical <= last; ) {
+        int count = map.runLength(logical, last - logical + 1);
+        int to = Math.min(offset + n, (logical + count) * bs);
+        dst.limit(dst.position() + to - pos);
+        disk.readBlocks(map.getBlock(logical), pos - logical * bs, dst);
+        pos = to;
+        logical += count;
+      }
+    } catch (IOException e) {
+      throw new FileSystemException("FileSystem::read(): " + e);
+    } finally {
+      dst.limit(limit);
+    }
+    return n;
+  }
+
+  // Write <length> bytes of <inode> starting at <offset> to <target>.
+  // Runs of at least GATHER_RUN blocks are sent by Disk.transferTo();
+  // shorter runs are read into a buffer, and written to <target> together
+  // with one gathering write when the buffer is full.  Returns the number
+  // of bytes written, -1 past the end of the file.
+  private int transferInode(Inode inode, int offset, int length, GatheringByteChannel target) throws FileSystemException {
+    if (offset >= inode.getSize()) {
+      return -1;
+    }
+    int n = Math.min(length, inode.getSize() - offset);
+    try {
+      if (inode.isInline()) {
+        byte[] out = new byte[n];
+        inode.getInline(offset, out, 0, n);
+        writeFully(target, new ByteBuffer[] {ByteBuffer.wrap(out)});
+        return n;
+      }
+      if (inode.isCompressed()) {
+        // The chunks are inflated: there are no blocks to hand over
+        ByteBuffer buf = ByteBuffer.allocate(Math.min(n, 16 * ChunkMap.CHUNK * disk.blockSize));
+        for (int pos = offset; pos < offset + n; ) {
+          buf.clear();
+          buf.limit(Math.min(buf.capacity(), offset + n - pos));
+          pos += readInode(inode, pos, buf);
+          buf.flip();
+          writeFully(target, new ByteBuffer[] {buf});
+        }
+        return n;
+      }
+      BlockMap map = new BlockMap(disk, null, inode);
+      int bs = disk.blockSize;
+      int last = (offset + n - 1) / bs;
+      ByteBuffer staging = null;
+      ArrayList<ByteBuffer> gather = new ArrayList<ByteBuffer>();
+
+      for (int logical = offset / bs, pos = offset; logical <= last; ) {
+        int count = map.runLength(logical, last - logical + 1);
+        int to = Math.min(offset + n, (logical + count) * bs);
+        int block = map.getBlock(logical);
+        int skip = pos - logical * bs;
+        if (count >= GATHER_RUN) {
+          writeFully(target, gather.toArray(new ByteBuffer[0]));
+          gather.clear();
+          disk.transferTo(block, skip, to - pos, target);
+        } else {
+          if (staging == null || staging.remaining() < to - pos) {
+            writeFully(target, gather.toArray(new ByteBuffer[0]));
+            gather.clear();
+            staging = ByteBuffer.allocate(GATHER_RUN * bs * 16);
+          }
+          ByteBuffer part = staging.slice();
+          part.limit(to - pos);
+          disk.readBlocks(block, skip, part);
+          part.flip();
+          gather.add(part);
+          staging.position(staging.position() + (to - pos));
+        }
+        pos = to;
+        logical += count;
+      }
+      writeFully(target, gather.toArray(new ByteBuffer[0]));
+    } catch (IOException e) {
+      throw new FileSystemException("FileSystem::transferTo(): " + e);
+    }
+    return n;
+  }
+
+  // Write every byte of <bufs> to <target>
+  private static void writeFully(GatheringByteChannel target, ByteBuffer[] bufs) throws IOException {
+    if (bufs.length == 0) {
+      return;
+    }
+    while (bufs[bufs.length - 1].hasRemaining()) {
+      target.write(bufs);
+    }
+  }
+
+  // Find the parent directory of <name> and return the last component of
+  // <name>.  The components are looked up in place.
   private String goToParentDirectory(String name) throws FileSystemException {
-    String arr[] = name.split("/");
-    db.read(1);
-    if (arr.length > 1) {
-      for (int i = 0; i < arr.length - 1; i++) {
-        int index = db.findName(arr[i]);
-        if (index == -1 || db.inodes[index].file_p) {
-          throw new FileSystemException("The parent directory does not exist");
+    int end = trimmedLength(name);
+    parent = parentOf(name, end);
+    if (parent == -1) {
+      throw new FileSystemException("The parent directory does not exist");
+    }
+    int start = name.lastIndexOf('/', end - 1) + 1;
+    return start == 0 && end == name.length() ? name : name.substring(start, end);
+  }
+
+  // Position db on the entry <entryName> of the directory found by
+  // goToParentDirectory() and return its index (-1 if there is none)
+  private int findEntry(String entryName) throws FileSystemException {
+    return db.lookup(parent, entryName, 0, entryName.length());
+  }
+
+  // Return = the first block of the directory that holds the last
+  //          component of name[0 ... end-1]
+  //        = -1 if one of the parents does not exist or is a file
+  private int parentOf(String name, int end) throws FileSystemException {
+    checkFormatted();
+    int dir = 1;
+    int start = 0;
+    for (int slash = name.indexOf('/'); slash >= 0 && slash < end; slash = name.indexOf('/', start)) {
+      DentryCache.Dentry d = resolve(dir, name, start, slash);
+      if (!d.exists || d.file) {
+        return -1;
+      }
+      dir = d.child;
+      start = slash + 1;
+    }
+    return dir;
+  }
+
+  // Return = what name[start ... end-1] is in the directory whose first
+  //          block is <dir>, from the dentry cache if possible
+  private DentryCache.Dentry resolve(int dir, String name, int start, int end) throws FileSystemException {
+    DentryCache.Dentry d = dentries.get(dir, name, start, end);
+    if (d == null) {
+      int index = db.lookup(dir, name, start, end);
+      if (index == -1) {
+        d = dentries.put(dir, name.substring(start, end), false, false, 0);
+      } else {
+        Inode inode = db.inodes[index];
+        d = dentries.put(dir, name.substring(start, end), true, inode.isFile(), inode.isFile() ? 0 : inode.getBlockPtr(0));
+      }
+    }
+    return d;
+  }
+
+  // Length of <name> without its trailing '/'s
+  private static int trimmedLength(String name) {
+    int end = name.length();
+    while (end > 0 && name.charAt(end - 1) == '/') {
+      end--;
+    }
+    return end;
+  }
+
+  // A file opened by open(): the directory block and the entry that hold
+  // its inode
+  private class OpenFile extends FileHandle {
+    private int dirRoot;              // First block of the parent directory
+    private String entryName;
+    private int leaf;                 // Directory block holding the inode
+    private int index;                // Entry of the inode in <leaf>
+    private DirectoryBlock dir = new DirectoryBlock(disk);
+    private boolean closed;
+    private int appenders;            // Append channels that are open
+
+    OpenFile(int dirRoot, String entryName, int leaf, int index) {
+      this.dirRoot = dirRoot;
+      this.entryName = entryName;
+      this.leaf = leaf;
+      this.index = index;
+    }
+
+    @Override
+    public int size() throws FileSystemException {
+      synchronized (FileSystem.this) {
+        return locate().getSize();
+      }
+    }
+
+    @Override
+    public byte[] read(int offset, int length) throws FileSystemException {
+      synchronized (FileSystem.this) {
+        return readInode(locate(), offset, length);
+      }
+    }
+
+    @Override
+    public int read(int offset, ByteBuffer dst) throws FileSystemException {
+      synchronized (FileSystem.this) {
+        return readInode(locate(), offset, dst);
+      }
+    }
+
+    @Override
+    public void append(byte[] buf, int bufLen) throws FileSystemException {
+      transaction(() -> {
+        appendInode(dir, locate(), buf, bufLen);
+      });
+    }
+
+    @Override
+    public int transferTo(int offset, int length, GatheringByteChannel target) throws FileSystemException {
+      synchronized (FileSystem.this) {
+        return transferInode(locate(), offset, length, target);
+      }
+    }
+
+    @Override
+    public SeekableByteChannel channel() {
+      return new InodeChannel(this);
+    }
+
+    @Override
+    public AppendChannel appendChannel() throws FileSystemException {
+      AppendChannel[] out = new AppendChannel[1];
+      transaction(() -> {
+        Inode inode = locate();
+        if (inode.isCompressed()) {
+          out[0] = new BufferedAppender(this, inode, new ChunkMap(disk, null, inode).chunkSize());
+          return;
+        }
+        if (disk.dedup.enabled) {
+          out[0] = new BufferedAppender(this, inode, 64 * disk.blockSize);
+          return;
+        }
+        // The channel rewrites the partial last block: it must not be shared
+        if (!inode.isInline() && inode.getSize() % disk.blockSize != 0) {
+          BlockMap map = new BlockMap(disk, free_block, inode);
+          map.writable(inode.getSize() / disk.blockSize);
+          map.flush();
+          if (map.copied()) {
+            dir.write(dir.block_num);
+          }
+        }
+        out[0] = new Appender(this, inode);
+      });
+      synchronized (FileSystem.this) {
+        appenders++;
+      }
+      return out[0];
+    }
+
+    @Override
+    public void write(int offset, byte[] buf, int bufLen) throws FileSystemException {
+      if (offset < 0) {
+        throw new FileSystemException("Negative offset: " + offset);
+      }
+      transaction(() -> {
+        writeInode(dir, locate(), offset, buf, bufLen);
+      });
+    }
+
+    @Override
+    public void close() throws FileSystemException {
+      synchronized (FileSystem.this) {
+        // The channels commit through this handle
+        if (appenders > 0) {
+          throw new FileSystemException(entryName + " has an append channel open.");
+        }
+        closed = true;
+        dir = null;
+      }
+    }
+
+    // Called by an append channel once it is closed
+    private void appenderClosed() {
+      synchronized (FileSystem.this) {
+        appenders--;
+      }
+    }
+
+    // Read the inode's directory block and return the inode.  Only if the
+    // entry is no longer where it was (the directory has been split, or
+    // the file removed) is the name looked up again.
+    private Inode locate() throws FileSystemException {
+      if (closed) {
+        throw new FileSystemException(entryName + " is closed.");
+      }
+      dir.read(leaf);
+      Inode inode = dir.inodes[index];
+      if (DirectoryIndex.isIndex(dir.image) || !inode.isUsed() || !inode.isFile()
+          || !inode.nameEquals(entryName, 0, entryName.length())) {
+        index = dir.lookup(dirRoot, entryName, 0, entryName.length());
+        if (index == -1 || !dir.inodes[index].isFile()) {
+          throw new FileSystemException(entryName + " does not exist.");
+        }
+        leaf = dir.block_num;
+        inode = dir.inodes[index];
+      }
+      return inode;
+    }
+  }
+
+  // The AppendChannel of an OpenFile
+  private class Appender extends AppendChannel {
+    private OpenFile file;
+    private int bs = disk.blockSize;
+    private int size;                 // Length of the file, buffered bytes included
+    private int limit;                // Largest size the inode can map
+    private byte[] tail;              // Bytes of the last, partial block
+    private int tailBlock = -1;       // Disk block of <tail> (-1 if none yet)
+    private boolean inline;           // The bytes are still in the inode
+    private int inlineCapacity;
+    private ArrayList<int[]> unmapped = new ArrayList<int[]>();   // Reserved blocks used but not in the inode yet
+    private ArrayDeque<int[]> reserved = new ArrayDeque<int[]>(); // Blocks reserved ahead of use
+    private int batch = 8;            // Blocks to reserve next time
+    private int blocks;               // Data blocks mapped, written or reserved
+    private int mapped;               // Data blocks in the inode
+    private int last = -1;            // Last block handed out
+    private boolean open = true;
+
+    // Called with the file system locked
+    Appender(OpenFile file, Inode inode) throws FileSystemException {
+      this.file = file;
+      tail = new byte[bs];
+      size = inode.getSize();
+      inlineCapacity = inode.inlineCapacity();
+      BlockMap map = new BlockMap(disk, null, inode);
+      limit = map.maxSize();
+      if (inode.isInline()) {
+        inline = true;
+        inode.getInline(0, tail, 0, size);
+      } else if (size % bs != 0) {
+        tailBlock = map.getBlock(size / bs);
+        try {
+          disk.readBlock(tailBlock, tail);
+        } catch (IOException e) {
+          throw new FileSystemException("FileSystem::appendChannel(): " + e);
+        }
+      }
+      blocks = map.numBlocks();
+      mapped = blocks;
+      if (blocks > 0) {
+        last = map.getBlock(blocks - 1);
+      }
+    }
+
+    @Override
+    public synchronized int write(ByteBuffer src) throws IOException {
+      if (!open) {
+        throw new ClosedChannelException();
+      }
+      int n = src.remaining();
+      if (size + (long) n > limit) {
+        throw new IOException("File too long (more than " + limit + " bytes).");
+      }
+      while (src.hasRemaining()) {
+        int at = size % bs;
+        int m = Math.min(bs - at, src.remaining());
+        boolean full = at + m == bs;
+        if (full && tailBlock == -1) {
+          // Before the bytes are taken, so that they are not counted if
+          // there is no block for them
+          tailBlock = nextBlock();
+        }
+        src.get(tail, at, m);
+        if (full) {
+          // The block is full: it is written once and never again
+          disk.writeBlock(tailBlock, tail);
+          tailBlock = -1;
+        }
+        size += m;
+      }
+      return n;
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+      if (!open) {
+        throw new ClosedChannelException();
+      }
+      commit(false);
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+      return open;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+      if (open) {
+        open = false;
+        try {
+          commit(true);
+        } catch (IOException e) {
+          abandon();
+          throw e;
+        } finally {
+          file.appenderClosed();
+        }
+      }
+    }
+
+    // Write the partial block and update the inode, which claims the
+    // blocks it gets; on <release> the unused reservation is handed back.
+    // The state of the channel only changes once the transaction commits.
+    private void commit(boolean release) throws IOException {
+      boolean fits = inline && size <= inlineCapacity;
+      int length = size;              // Bytes the inode gets
+      IOException full = null;        // Why the partial block has no room
+      if (!fits && size % bs != 0) {
+        if (tailBlock == -1) {
+          try {
+            tailBlock = nextBlock();
+          } catch (IOException e) {
+            // The whole blocks are committed all the same
+            full = e;
+            length = size - size % bs;
+          }
+        }
+        if (full == null) {
+          disk.writeBlock(tailBlock, tail);
+        } else if (length == 0) {
+          // Nothing left the inode yet
+          throw full;
+        }
+      }
+      final int committed = length;
+      try {
+        transaction(() -> {
+          Inode inode = file.locate();
+          if (fits) {
+            inode.putInline(0, tail, 0, size);
+            inode.setSize(size);
+          } else {
+            if (inline) {
+              // The inline bytes are in <tail>, and move to blocks with it
+              inode.clearBlocks();
+              inode.setInline(false);
+            }
+            free_block.ClaimExtents(unmapped.toArray(new int[0][]));
+            BlockMap map = new BlockMap(disk, free_block, inode);
+            for (int[] e : unmapped) {
+              map.addExtent(e[0], e[1]);
+            }
+            inode.setSize(committed);
+            map.flush();
+          }
+          file.dir.write(file.dir.block_num);
+        });
+      } catch (FileSystemException e) {
+        throw new IOException("FileSystem::append(): " + e);
+      }
+      // The claimed blocks are allocated now (unless the bytes stayed in
+      // the inode, and they are free again)
+      free_block.UnreserveExtents(unmapped.toArray(new int[0][]));
+      inline = fits;
+      unmapped.clear();
+      mapped = fits ? 0 : (int) ((committed + (long) bs - 1) / bs);
+      if (release) {
+        free_block.UnreserveExtents(reserved.toArray(new int[0][]));
+        reserved.clear();
+        blocks = mapped;
+      }
+      if (full != null) {
+        throw full;
+      }
+    }
+
+    // Hand back the blocks written for the file and the reservation, when
+    // the bytes cannot be committed (the file may be gone).  None of them
+    // is allocated in the bitmap.
+    private void abandon() {
+      free_block.UnreserveExtents(unmapped.toArray(new int[0][]));
+      free_block.UnreserveExtents(reserved.toArray(new int[0][]));
+      unmapped.clear();
+      reserved.clear();
+    }
+
+    // Return = the next data block of the file, taken from the reservation
+    //          (which is refilled, twice as large each time, when empty).
+    //          Reserving takes no transaction.
+    private int nextBlock() throws IOException {
+      if (reserved.isEmpty()) {
+        // Leave room for the indirect blocks that will map the batch
+        int free = free_block.numFree();
+        int n = Math.min(batch, free);
+        while (n > 0 && n + BlockMap.indirectBlocks(disk, blocks + (long) n)
+            - BlockMap.indirectBlocks(disk, mapped) > free) {
+          n--;
+        }
+        if (n == 0) {
+          throw new IOException("FileSystem::append(): The file system is full.");
+        }
+        try {
+          for (int[] e : free_block.ReserveExtents(last + 1, n)) {
+            reserved.add(e);
+            blocks += e[1];
+          }
+        } catch (FileSystemException e) {
+          throw new IOException("FileSystem::append(): " + e);
+        }
+        batch = Math.min(2 * batch, 1024);
+      }
+      int[] e = reserved.peekFirst();
+      int block = e[0];
+      if (--e[1] == 0) {
+        reserved.removeFirst();
+      } else {
+        e[0]++;
+      }
+
+      int[] u = unmapped.isEmpty() ? null : unmapped.get(unmapped.size() - 1);
+      if (u != null && u[0] + u[1] == block) {
+        u[1]++;
+      } else {
+        unmapped.add(new int[] {block, 1});
+      }
+      last = block;
+      return block;
+    }
+  }
+
+  // The AppendChannel of a compressed OpenFile, or of any OpenFile when
+  // blocks are deduplicated: the bytes are collected up to a multiple of
+  // <unit> bytes and appended by appendInode(), so that every whole chunk
+  // is deflated and written once, and every whole block is looked up
+  private class BufferedAppender extends AppendChannel {
+    private OpenFile file;
+    private int cs;                   // Bytes appended at once
+    private byte[] buf;
+    private int len;                  // Bytes in <buf>
+    private int size;                 // Length of the file, buffered bytes included
+    private int limit;                // Largest size the inode can map
+    private boolean open = true;
+
+    // Called with the file system locked
+    BufferedAppender(OpenFile file, Inode inode, int unit) {
+      this.file = file;
+      cs = unit;
+      buf = new byte[cs];
+      size = inode.getSize();
+      limit = inode.isCompressed() ? new ChunkMap(disk, null, inode).maxSize()
+          : new BlockMap(disk, null, inode).maxSize();
+    }
+
+    @Override
+    public synchronized int write(ByteBuffer src) throws IOException {
+      if (!open) {
+        throw new ClosedChannelException();
+      }
+      int n = src.remaining();
+      if (size + (long) n > limit) {
+        throw new IOException("File too long (more than " + limit + " bytes).");
+      }
+      while (src.hasRemaining()) {
+        int m = Math.min(cs - size % cs, src.remaining());
+        src.get(buf, len, m);
+        len += m;
+        size += m;
+        if (size % cs == 0) {
+          commit();
+        }
+      }
+      return n;
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+      if (!open) {
+        throw new ClosedChannelException();
+      }
+      commit();
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+      return open;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+      if (open) {
+        open = false;
+        try {
+          commit();
+        } finally {
+          file.appenderClosed();
         }
-        db.read(db.inodes[index].blockPtr[0]);
       }
-      name = arr[arr.length - 1];
     }
-    return name;
+
+    // Append the buffered bytes to the file
+    private void commit() throws IOException {
+      if (len == 0) {
+        return;
+      }
+      try {
+        transaction(() -> {
+          appendInode(file.dir, file.locate(), buf, len);
+        });
+      } catch (FileSystemException e) {
+        throw new IOException("FileSystem::append(): " + e);
+      }
+      len = 0;
+    }
+  }
+
+  // The SeekableByteChannel of an OpenFile.  Reads and writes go to the
+  // blocks at the current position only; reads smaller than a block go
+  // through the buffer cache, so that a reader that consumes a file in
+  // small pieces reads each block from the device once.
+  private class InodeChannel implements SeekableByteChannel {
+    private OpenFile file;
+    private long position;
+    private byte[] block = new byte[disk.blockSize];
+    private boolean open = true;
+
+    InodeChannel(OpenFile file) {
+      this.file = file;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+      synchronized (FileSystem.this) {
+        check();
+        try {
+          Inode inode = file.locate();
+          if (position >= inode.getSize()) {
+            return -1;
+          }
+          int pos = (int) position;
+          int bs = disk.blockSize;
+          int n;
+          if (dst.remaining() < bs && !inode.isInline() && !inode.isCompressed()) {
+            n = Math.min(Math.min(dst.remaining(), bs - pos % bs), inode.getSize() - pos);
+            disk.readBlock(new BlockMap(disk, null, inode).getBlock(pos / bs), block);
+            dst.put(block, pos % bs, n);
+          } else {
+            n = readInode(inode, pos, dst);
+          }
+          position += n;
+          return n;
+        } catch (FileSystemException e) {
+          throw new IOException("FileSystem::read(): " + e);
+        }
+      }
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+      check();
+      int n = src.remaining();
+      if (position + n > Integer.MAX_VALUE) {
+        throw new IOException("File too long (more than " + Integer.MAX_VALUE + " bytes).");
+      }
+      byte[] buf = new byte[n];
+      src.duplicate().get(buf);
+      try {
+        transaction(() -> {
+          writeInode(file.dir, file.locate(), (int) position, buf, n);
+        });
+      } catch (FileSystemException e) {
+        throw new IOException("FileSystem::write(): " + e);
+      }
+      src.position(src.position() + n);
+      position += n;
+      return n;
+    }
+
+    @Override
+    public long position() throws IOException {
+      check();
+      return position;
+    }
+
+    @Override
+    public SeekableByteChannel position(long newPosition) throws IOException {
+      check();
+      if (newPosition < 0) {
+        throw new IllegalArgumentException("Negative position: " + newPosition);
+      }
+      position = newPosition;
+      return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+      check();
+      try {
+        return file.size();
+      } catch (FileSystemException e) {
+        throw new IOException("FileSystem::size(): " + e);
+      }
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) throws IOException {
+      check();
+      if (size < 0) {
+        throw new IllegalArgumentException("Negative size: " + size);
+      }
+      try {
+        transaction(() -> {
+          truncateInode(file.dir, file.locate(), (int) Math.min(size, Integer.MAX_VALUE));
+        });
+      } catch (FileSystemException e) {
+        throw new IOException("FileSystem::truncate(): " + e);
+      }
+      position = Math.min(position, size);
+      return this;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return open;
+    }
+
+    @Override
+    public void close() {
+      open = false;
+    }
+
+    private void check() throws ClosedChannelException {
+      if (!open) {
+        throw new ClosedChannelException();
+      }
+    }
   }
 }
@@ -19,6 +19,8 @@
 import java.util.*;
 import java.lang.*;
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
 
 
 abstract class FileSystemAbstract {
@@ -29,6 +31,7 @@ abstract class FileSystemAbstract {
 
   public Disk disk;             // Disk reference
   public FreeBlock free_block;  // Cached copy of the free block
+  public DentryCache dentries = new DentryCache(4096);  // Resolved path components
 
   /**
    * Create the FileSystem structures
@@ -36,17 +39,38 @@ abstract class FileSystemAbstract {
    * Effects:
    * 1. Opens the simulated disk
    * 2. Caches the free block
+   *
+   * throws FileSystemException if:
+   * 1. The disk cannot be mounted (see FileSystemAbstract(Disk))
+   *
+   * @throws FileSystemException
    */
-  public FileSystemAbstract() {
+  public FileSystemAbstract() throws FileSystemException {
     // Create reference to a disk of a specific geometry
-    disk = new Disk("Disk0", 1024, 256);
+    this(new Disk("Disk0", 1024, 256));
+  };
+
+  /**
+   * Create the FileSystem structures on top of an already opened disk
+   *
+   * Effects:
+   * 1. Replays the metadata journal
+   * 2. Caches the free block, unless the disk must be formatted first
+   *
+   * throws FileSystemException if:
+   * 1. The journal cannot be replayed
+   * 2. The free block cannot be read
+   *
+   * @param dsk
+   * @throws FileSystemException
+   */
+  public FileSystemAbstract(Disk dsk) throws FileSystemException {
+    disk = dsk;
     // Cache the free block list
     free_block = new FreeBlock(disk);
-    try {
+    disk.mount();
+    if(disk.journal.isFormatted()) {
       free_block.read(0);
-    }catch(FileSystemException e) {
-      System.out.println("FileSystem(): Init error");
-      System.exit(1);
     };
   };
 
@@ -65,10 +89,134 @@ abstract class FileSystemAbstract {
    */
   final public void format () throws FileSystemException{
     disk.format();
+    dentries.clear();
     free_block.read(0);
     disk.debug("f:" + free_block.buffer[0]);
   };
 
+  /**
+   * Start erasing freed blocks in the background, at most
+   * <blocksPerSecond> blocks per second.  Without this, freed blocks keep
+   * their old contents until they are reused.
+   *
+   * @param blocksPerSecond
+   */
+  final public void startScrubber(int blocksPerSecond) {
+    if(disk.scrubber == null) {
+      disk.scrubber = new BlockScrubber(disk, free_block, blocksPerSecond);
+      disk.scrubber.start();
+    };
+  };
+
+  /**
+   * Deduplicate the blocks appended from now on (or stop, if <on> is
+   * false): a whole block identical to one already on the disk shares that
+   * block instead of being written.  Blocks already written keep their
+   * fingerprints either way.
+   *
+   * @param on
+   */
+  final public void setDedup(boolean on) {
+    disk.dedup.enabled = on;
+  };
+
+  /**
+   * Force everything written so far out to the disk file
+   *
+   * throws FileSystemException if:
+   * 1. An I/O error occurs with the external file system.
+   * 2. The scrubber has stopped on an I/O error
+   *
+   * @throws FileSystemException
+   */
+  final public void sync() throws FileSystemException {
+    disk.flush();
+    if(disk.scrubber != null) {
+      disk.scrubber.check();
+    };
+  };
+
+  // A file system operation that runs as one metadata transaction
+  protected interface Operation {
+    void run() throws FileSystemException;
+  };
+
+  /**
+   * Run <op> as a single journal transaction and wait until it is durable.
+   * The operation itself is serialized with all other operations; waiting
+   * for the log is not, so concurrent callers share one log flush.
+   *
+   * Effects:
+   * 1. If <op> fails or cannot be logged, the metadata it wrote is
+   *    rolled back and nothing is committed
+   *
+   * throws FileSystemException if:
+   * 1. The disk is not formatted
+   * 2. <op> fails
+   * 3. The transaction cannot be logged
+   *
+   * @param op
+   * @throws FileSystemException
+   */
+  final protected void transaction(Operation op) throws FileSystemException {
+    checkFormatted();
+    long lsn;
+    synchronized(this) {
+      disk.begin();
+      try {
+        op.run();
+        // Whatever the allocator still holds in memory belongs to this
+        // transaction too
+        free_block.flush();
+      }catch(FileSystemException | RuntimeException | Error e) {
+        rollback(e);
+        throw e;
+      };
+      try {
+        lsn = disk.end();
+      }catch(FileSystemException e) {
+        // end() has already rolled the blocks back
+        reload(e);
+        throw e;
+      };
+    }
+    disk.force(lsn);
+  };
+
+  // Abandon the open transaction after <cause>, and forget the state
+  // that was built from its metadata
+  private void rollback(Throwable cause) {
+    disk.abort();
+    reload(cause);
+  };
+
+  // Read the allocation state again, and forget the resolved names, after
+  // a transaction was rolled back because of <cause>
+  private void reload(Throwable cause) {
+    dentries.clear();
+    try {
+      free_block.read(0);
+    }catch(FileSystemException e) {
+      cause.addSuppressed(e);
+    };
+  };
+
+  /**
+   * Check that the disk holds a file system of the current layout.  Any
+   * other image, including one formatted by an older version, has to be
+   * formatted again before it is used.
+   *
+   * throws FileSystemException if:
+   * 1. The disk is not formatted with the current layout
+   *
+   * @throws FileSystemException
+   */
+  final protected void checkFormatted() throws FileSystemException {
+    if(!disk.journal.isFormatted()) {
+      throw new FileSystemException("The disk is not formatted with the current layout: format it first.");
+    };
+  };
+
   /**
    * Check the name of the directory.  If valid, returns without doing anything
    *
@@ -82,13 +230,8 @@ abstract class FileSystemAbstract {
    * @throws FileSystemException
    */
   final protected void checkDirectoryName(String name) throws FileSystemException {
-    // Check for valid characters
-    if(!name.matches("^[\\w\\._/]*$")) {
-      throw new FileSystemException("Ill-formed file name (" + name + ").");
-    };
-
-    // Check for repeated "/"
-    if(name.matches(".*//.*")) {
+    // Check for valid characters, and for repeated "/"
+    if(!Inode.validName(name, 0, name.length(), true) || name.indexOf("//") >= 0) {
       throw new FileSystemException("Ill-formed file name (" + name + ").");
     };
   };
@@ -103,6 +246,8 @@ abstract class FileSystemAbstract {
    * Effects:
    * 1. Creates a new file in our file system
    * 2. If <fname2> already exists, it is first removed
+   * 3. If the import fails, <fname2> keeps the bytes that could be
+   *    committed, and no block is left allocated for the rest
    *
    * throws FileSystemException if:
    * 1. <fname2> is a directory
@@ -120,19 +265,27 @@ abstract class FileSystemAbstract {
     int i;
     int len;
     byte[] buf = new byte[1000];
-    try {
-      // Open the original file in the base file system
-      FileInputStream f = new FileInputStream(fname1);
+    // Open the original file in the base file system
+    try(FileInputStream f = new FileInputStream(fname1)) {
 
       // Create the new file in the local file system
       create(fname2);
-
-      // While there are bytes to read from the base file system
-      while((len=f.read(buf)) > 0) {
-        // Append these bytes to the local file system
-        append(fname2, buf, len);
+      FileHandle h = open(fname2);
+      try {
+        // The channel is closed whatever happens: closing commits the
+        // bytes appended so far, or gives their blocks and the
+        // reservation back
+        try(AppendChannel out = h.appendChannel()) {
+          // While there are bytes to read from the base file system
+          while((len=f.read(buf)) > 0) {
+            // Append these bytes to the local file system (the inode is
+            // written once, when the channel is closed)
+            out.write(ByteBuffer.wrap(buf, 0, len));
+          };
+        }
+      }finally{
+        h.close();
       };
-      f.close();
     }catch(IOException e) {
       // Catch any errors from the import file access
       throw new FileSystemException("Import file error: " + e);
@@ -157,27 +310,28 @@ abstract class FileSystemAbstract {
   final public void fileExport(String fname1, String fname2)
       throws FileSystemException {
     int i;
-    byte[] buf;
+    int n;
 
     try {
       if(existsFile(fname1)) {
         // The original file exists
 
         // Create the output file in the base system
-        FileOutputStream f = new FileOutputStream(fname2);
-        i = 0;
-        // Read the first 1000 bytes
-        buf = read(fname1, i, 1000);
-        // While there are bytes in the buffer
-        while(buf != null) {
-          // Write the bytes to
-          f.write(buf);
-          // Increment the byte count
-          i += 1000;
-          // Read the next 1000 bytes from the local file system
-          buf = read(fname1, i, 1000);
-        };
-        f.close();
+        try(FileOutputStream f = new FileOutputStream(fname2)) {
+          FileChannel out = f.getChannel();
+          FileHandle h = open(fname1);
+          try {
+            i = 0;
+            // Send the file from the disk image to the output file, 8 MB
+            // at a time so that other operations can run in between
+            while((n = h.transferTo(i, 8 << 20, out)) > 0) {
+              // Increment the byte count
+              i += n;
+            };
+          }finally{
+            h.close();
+          };
+        }
       }else if(existsDirectory(fname1)) {
         // original was a directory
         throw new FileSystemException(fname1 + " is a directory.");
@@ -325,6 +479,31 @@ abstract class FileSystemAbstract {
    */
   abstract public byte[] read(String name, int offset, int length) throws FileSystemException;
 
+  /**
+   * Fill <dst> (from its position to its limit) with the bytes of a file
+   * starting at position <offset>.  The bytes are copied from the block
+   * cache or the device straight into <dst>.
+   *
+   * Return = the number of bytes read (fewer than dst.remaining() at the
+   *          end of the file)
+   *        = -1 if offset is passed the end of the file.
+   *
+   * Effects:
+   * 1. The position of <dst> advances by the number of bytes read
+   *
+   * throws FileSystemException if:
+   * 1. <name> is not a valid name
+   * 2. The file does not exist
+   * 3. The name corresponds to a directory
+   *
+   * @param name
+   * @param offset
+   * @param dst
+   * @return
+   * @throws FileSystemException
+   */
+  abstract public int read(String name, int offset, ByteBuffer dst) throws FileSystemException;
+
   /**
    * Return = true if <name> exists and is a file
    *
@@ -380,6 +559,42 @@ abstract class FileSystemAbstract {
   abstract public void append(String name, byte[] buf, int bufLen)
       throws FileSystemException;
 
+  /**
+   * Open the file <name>, so that it can be read and written without
+   * resolving its name on every call.
+   *
+   * Return = a handle on the file
+   *
+   * throws FileSystemException if:
+   * 1. <name> is not a valid name
+   * 2. <name> does not exist
+   * 3. <name> is a directory
+   *
+   * @param name
+   * @return
+   * @throws FileSystemException
+   */
+  abstract public FileHandle open(String name) throws FileSystemException;
+
+  /**
+   * Store the file <name> compressed (true) or plain (false).
+   *
+   * Effects:
+   * 1. The contents of the file are rewritten in the new form (they are
+   *    unchanged); the later writes keep it
+   *
+   * throws FileSystemException if:
+   * 1. <name> is not a valid name
+   * 2. <name> does not exist
+   * 3. <name> is a directory
+   * 4. The file system is too full to hold a second copy of the file
+   *
+   * @param name
+   * @param compressed
+   * @throws FileSystemException
+   */
+  abstract public void setCompressed(String name, boolean compressed) throws FileSystemException;
+
   /**
    * Move absolute <name1> to absolute <name2>
    * Notation: assume that <name1> = <path1>/<nm1>
@@ -1,61 +1,722 @@
+// Bitmap allocator for the free space of the disk.
+// The bitmap starts in block 0 (buffer[]); disks with more than
+// 8 * blockSize blocks continue it in the extra bitmap blocks that follow
+// the journal (see Disk.bitmapBlock()).  The reference counts of shared
+// blocks (refs) and the fingerprint index of the disk (Disk.dedup) are
+// read, formatted and written back with the bitmap.  The bitmap is mirrored into
+// stored[], a word-packed copy in which bit (i & 63) of stored[i >> 6] is
+// set when block i is free, and only the bitmap blocks that changed are
+// written back to the disk.
+//
+// Blocks can also be reserved (see ReserveExtents()): they stay free in
+// the bitmap, and are only set aside in held[], in memory.  A reservation
+// costs no transaction, and a crash cannot leak it; the blocks are
+// allocated for good by ClaimExtents(), in the transaction that puts them
+// in a file.  words[] holds the blocks that can be allocated, those that
+// are free and not reserved.
+//
+// The blocks that can be allocated are indexed on three levels so that
+// one can be found with a handful of bit scans whatever the fill level:
+// - words[]:     one bit per block
+// - summary[]:   one bit per word of words[] that has a free block;
+//                each summary word describes a group of 64 * 64 blocks
+// - top[]:       one bit per group that is not full
+// groupFree[] counts the free blocks of each group.  The upper levels
+// live only in memory and are rebuilt whenever the bitmap is read.
+//
+// Each group is also an allocation group with its own lock: its words,
+// summary word and free count only change under it, so threads that
+// allocate or reserve in different groups do not wait for each other.
+// top[] and every bitmap page have a lock of their own, and the free total
+// is an AtomicInteger.  A request starts in the group of its goal block,
+// or else in the home group of its thread (handed out round-robin), and
+// spills over to the next non-full group when that one cannot satisfy it;
+// the group it spilled to becomes the new home.  Reservations (see
+// ReserveExtents()) and the scrubber (see ifFree()) do not run in a
+// transaction, so they only meet other allocations on a group lock.
+// read() and format() hold every group lock.
+//
+// Allocations prefer contiguous runs: AllocExtents() first tries to
+// continue at a goal block (normally just past the end of a file), then
+// looks for the first free run that is long enough, and only falls back to
+// scattered blocks when the free space is too fragmented.
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.io.*;
+
 class FreeBlock extends FreeBlockAbstract {
 
+  static final int GROUP_BLOCKS = 64 * 64;    // Blocks per group
+
+  // In-memory copy of the bitmap, 64 blocks per word
+  private long stored[];
+  private long held[];                // Reserved blocks
+  private long words[];               // stored[] & ~held[]
+  private long summary[];             // Bit per non-empty word
+  private long top[];                 // Bit per non-full group
+  private int groupFree[];            // Free blocks in each group
+  private AtomicInteger free = new AtomicInteger();  // Sum of groupFree[]
+
+  private ReentrantLock locks[];      // Lock of each allocation group
+
+  public RefCount refs;               // Reference counts of shared blocks
+
+  private byte pages[][];             // Bitmap blocks (pages[0] is buffer)
+  private boolean dirty[];            // Bitmap blocks to write back
+
+  // Home allocation group of each thread
+  private AtomicInteger nextHome = new AtomicInteger();
+  private ThreadLocal<Integer> home = new ThreadLocal<Integer>();
+
   public FreeBlock(Disk dsk) {
     super(dsk);
+    int nwords = (disk.numBlocks + 63) >>> 6;
+    int ngroups = (nwords + 63) >>> 6;
+    stored = new long[nwords];
+    held = new long[nwords];
+    words = new long[nwords];
+    summary = new long[ngroups];
+    top = new long[(ngroups + 63) >>> 6];
+    groupFree = new int[ngroups];
+    locks = new ReentrantLock[ngroups];
+    for(int g = 0; g < ngroups; ++g) {
+      locks[g] = new ReentrantLock();
+    };
+
+    pages = new byte[disk.bitmapBlocks][];
+    pages[0] = buffer;
+    for(int i = 1; i < pages.length; ++i) {
+      pages[i] = new byte[disk.blockSize];
+    };
+    dirty = new boolean[pages.length];
+    refs = new RefCount(disk);
   }
 
+  /**
+   * Read the bitmap, starting at block <block>, and rebuild the in-memory
+   * index.
+   *
+   * @param block
+   * @throws FileSystemException
+   */
   @Override
-  public void DeallocBlocks(short[] blockPtr, int num_blocks) throws FileSystemException {
-    int prev_block_num = block_num;
+  public void read(int block) throws FileSystemException {
+    lockAll();
+    try {
+      super.read(block);
+      try {
+        for(int i = 1; i < pages.length; ++i) {
+          disk.readBlock(disk.bitmapBlock(i), pages[i]);
+        };
+      }catch(IOException e) {
+        throw new FileSystemException("FreeBlock::read(): " + e);
+      };
+      load();
+      refs.read();
+      disk.dedup.read();
+    }finally{
+      unlockAll();
+    };
+  }
+
+  /**
+   * Initialize the bitmap of a freshly formatted disk: every block below
+   * Disk.firstDataBlock() is allocated, all others are free.
+   *
+   * Effects:
+   * 1. All bitmap blocks are written
+   *
+   * throws FileSystemException if:
+   * 1. There is a write error
+   *
+   * @throws FileSystemException
+   */
+  public void format() throws FileSystemException {
+    lockAll();
+    try {
+      Arrays.fill(stored, 0L);
+      Arrays.fill(held, 0L);
+      Arrays.fill(words, 0L);
+      block_num = 0;
+      setRange(disk.firstDataBlock(), disk.numBlocks - disk.firstDataBlock(), true);
+      index();
+      for(int i = 0; i < pages.length; ++i) {
+        synchronized(pages[i]) {
+          dirty[i] = true;
+        }
+      };
+      refs.format();
+      disk.dedup.format();
+      flush();
+    }finally{
+      unlockAll();
+    };
+  }
+
+  /**
+   * Return = the number of blocks that are currently free (reserved
+   *          blocks excepted)
+   *
+   * @return
+   */
+  public int numFree() {
+    return free.get();
+  }
+
+  /**
+   * Return = a summary of the free space: the free count of every group
+   *          that is not empty (on disks of more than one group), then the
+   *          total
+   *
+   * @return
+   */
+  public String stats() {
+    StringBuilder out = new StringBuilder();
+    for(int g = 0; groupFree.length > 1 && g < groupFree.length; ++g) {
+      int n;
+      locks[g].lock();
+      try {
+        n = groupFree[g];
+      }finally{
+        locks[g].unlock();
+      };
+      if(n < Math.min(GROUP_BLOCKS, disk.numBlocks - g * GROUP_BLOCKS)) {
+        out.append("Group " + g + ": " + n + " free\n");
+      };
+    };
+    return out.append(numFree() + " of " + disk.numBlocks + " blocks free").toString();
+  }
+
+  @Override
+  public void DeallocBlocks(int[] blockPtr, int num_blocks) throws FileSystemException {
     for(int i = 0; i < num_blocks; i++) {
-      for(int j = 0; j < disk.blockSize; j++) {
-        buffer[j] = (byte) 0xff;
+      int b = blockPtr[i];
+      if(b < 2 || b >= disk.numBlocks) {
+        throw new FileSystemException("Block " + b + " cannot be deallocated");
       };
-      write(blockPtr[i]);
     };
-    read(prev_block_num);
+
+    for(int i = 0; i < num_blocks; i++) {
+      setRange(blockPtr[i], 1, true);
+      disk.freed(blockPtr[i], 1);
+    };
+    flush();
   }
 
   @Override
-  public void AllocBlocks(short[] blockPtr, int start, int num_blocks) throws FileSystemException {
-    int prev_block_num = block_num;
-    if (start + num_blocks > disk.blockSize) {
+  public void AllocBlocks(int[] blockPtr, int start, int num_blocks) throws FileSystemException {
+    if (start + num_blocks > blockPtr.length) {
       throw new FileSystemException("start + num_blocks > maxFileBlock");
     }
 
-    int count = 0;
-    short[] free = new short[num_blocks];
+    int i = start;
+    for(int[] e: AllocExtents(0, num_blocks)) {
+      for(int j = 0; j < e[1]; ++j) {
+        blockPtr[i++] = e[0] + j;
+      };
+    };
+  }
+
+  /**
+   * Allocate <num_blocks> free blocks as a list of {start, length}
+   * extents, preferring as few extents as possible.  Allocation begins at
+   * <goal> if that block is free.
+   *
+   * Effects:
+   * 1. The allocation state is changed and the bitmap is written
+   * 2. If there are not num_blocks free blocks, nothing is changed
+   *
+   * Return = the extents, in allocation order
+   *
+   * throws FileSystemException if:
+   * 1. There was a write error to the disk
+   * 2. The file system is too full to allocate the blocks
+   *
+   * @param goal
+   * @param num_blocks
+   * @return
+   * @throws FileSystemException
+   */
+  public int[][] AllocExtents(int goal, int num_blocks) throws FileSystemException {
+    int out[][] = find(goal, num_blocks, false);
+    flush();
+    return out;
+  }
 
-    for(short i = 2; i < disk.numBlocks; i++) {
-      read(i);
-      boolean isFreeBlock = true;
+  /**
+   * Reserve <num_blocks> free blocks, chosen as AllocExtents() does.  The
+   * bitmap is not changed: the blocks are only withheld from other
+   * allocations until they are claimed (see ClaimExtents()) or handed
+   * back (see UnreserveExtents()).  A crash forgets the reservation.
+   *
+   * Return = the extents, in allocation order
+   *
+   * throws FileSystemException if:
+   * 1. The file system is too full to reserve the blocks
+   *
+   * @param goal
+   * @param num_blocks
+   * @return
+   * @throws FileSystemException
+   */
+  public int[][] ReserveExtents(int goal, int num_blocks) throws FileSystemException {
+    return find(goal, num_blocks, true);
+  }
 
-      for(int j = 0; j < disk.blockSize; j++) {
-        if (buffer[j] != (byte) 0x00) {
-          isFreeBlock = false;
-        }
+  /**
+   * Allocate the reserved blocks of a list of {start, length} extents in
+   * the bitmap.  They stay reserved: once the transaction that claims them
+   * commits, the caller hands the reservation back with
+   * UnreserveExtents(), and if it is rolled back they are still reserved.
+   *
+   * Effects:
+   * 1. The bitmap is written
+   *
+   * throws FileSystemException if:
+   * 1. There is a write error
+   * 2. A block is not reserved
+   *
+   * @param extents
+   * @throws FileSystemException
+   */
+  public void ClaimExtents(int[][] extents) throws FileSystemException {
+    for(int[] e: extents) {
+      for(int b = e[0]; b < e[0] + e[1]; ++b) {
+        if(!isHeld(b)) {
+          throw new FileSystemException("Block " + b + " is not reserved");
+        };
+      };
+    };
+    for(int[] e: extents) {
+      setRange(e[0], e[1], false);
+    };
+    flush();
+  }
+
+  /**
+   * Hand back the reservation of the blocks of a list of {start, length}
+   * extents: those that are free in the bitmap can be allocated again.
+   *
+   * @param extents
+   */
+  public void UnreserveExtents(int[][] extents) {
+    for(int[] e: extents) {
+      hold(e[0], e[1], false);
+    };
+  }
+
+  // Choose <num_blocks> blocks starting at <goal> if possible, and
+  // allocate them (or reserve them, if <reserve>)
+  private int[][] find(int goal, int num_blocks, boolean reserve) throws FileSystemException {
+    ArrayList<int[]> out = new ArrayList<int[]>();
+    int want = num_blocks;
+
+    if(want > numFree()) {
+      throw new FileSystemException("There are not " + num_blocks + " free blocks to allocate");
+    };
+
+    // Runs are marked as allocated as soon as they are chosen, and handed
+    // back if the request cannot be satisfied.  Only one group lock is
+    // held at a time.
+    boolean hasGoal = goal >= 2 && goal < disk.numBlocks;
+    int first = hasGoal ? goal / GROUP_BLOCKS : home();
+
+    // 1. Continue at the goal
+    if(want > 0 && hasGoal) {
+      locks[first].lock();
+      try {
+        if(isFree(goal)) {
+          want -= take(out, goal, Math.min(want, nextUsed(goal, first) - goal), reserve);
+        };
+      }finally{
+        locks[first].unlock();
       };
-      if(isFreeBlock) {
-        free[count] = i;
-        count++;
-        if (count == num_blocks) {
-          break;
+    };
+
+    // 2. The first free run that holds the rest, group by group
+    for(int pass = 0; pass < 2 && want > 0 && want <= GROUP_BLOCKS; ++pass) {
+      int end = pass == 0 ? groupFree.length : first;
+      for(int g = nextGroup(pass == 0 ? first : 0); g >= 0 && g < end && want > 0; g = nextGroup(g + 1)) {
+        locks[g].lock();
+        try {
+          for(int b = nextFree(g * GROUP_BLOCKS, g); groupFree[g] >= want && b < groupEnd(g); b = nextFree(b, g)) {
+            int e = nextUsed(b, g);
+            if(e - b >= want) {
+              want -= take(out, b, want, reserve);
+              setHome(g);
+              break;
+            };
+            b = e;
+          };
+        }finally{
+          locks[g].unlock();
+        };
+      };
+    };
+
+    // 3. Whatever is left, in runs taken from the groups in order
+    for(int pass = 0; pass < 2 && want > 0; ++pass) {
+      int end = pass == 0 ? groupFree.length : first;
+      for(int g = nextGroup(pass == 0 ? first : 0); g >= 0 && g < end && want > 0; g = nextGroup(g + 1)) {
+        locks[g].lock();
+        try {
+          for(int b = nextFree(g * GROUP_BLOCKS, g); want > 0 && b < groupEnd(g); b = nextFree(b, g)) {
+            int len = Math.min(want, nextUsed(b, g) - b);
+            want -= take(out, b, len, reserve);
+            b += len;
+          };
+        }finally{
+          locks[g].unlock();
+        };
+        setHome(g);
+      };
+    };
+
+    if (want > 0) {
+      for(int[] e: out) {
+        if(reserve) {
+          hold(e[0], e[1], false);
+        }else{
+          setRange(e[0], e[1], true);
+        };
+      };
+      throw new FileSystemException("There are not " + num_blocks + " free blocks to allocate");
+    }
+    return out.toArray(new int[out.size()][]);
+  }
+
+  /**
+   * Release the blocks of a list of {start, length} extents.
+   *
+   * Effects:
+   * 1. The allocation state is changed and the bitmap is written
+   *
+   * throws FileSystemException if:
+   * 1. There is a write error
+   * 2. An extent lies outside of the data area
+   *
+   * @param extents
+   * @throws FileSystemException
+   */
+  public void DeallocExtents(int[][] extents) throws FileSystemException {
+    for(int[] e: extents) {
+      if(e[0] < 2 || e[0] + e[1] > disk.numBlocks) {
+        throw new FileSystemException("Blocks " + e[0] + "+" + e[1] + " cannot be deallocated");
+      };
+    };
+    for(int[] e: extents) {
+      setRange(e[0], e[1], true);
+      disk.freed(e[0], e[1]);
+    };
+    flush();
+  }
+
+  /**
+   * Write the bitmap blocks, reference count pages and fingerprint index
+   * blocks that changed since the last flush.
+   *
+   * throws FileSystemException if:
+   * 1. There is a write error
+   *
+   * @throws FileSystemException
+   */
+  public void flush() throws FileSystemException {
+    try {
+      for(int i = 0; i < pages.length; ++i) {
+        byte image[] = null;
+        synchronized(pages[i]) {
+          if(dirty[i]) {
+            image = pages[i].clone();
+            dirty[i] = false;
+          };
         }
-      }
+        if(image != null) {
+          disk.writeMetadata(disk.bitmapBlock(i), image);
+        };
+      };
+    }catch(IOException e) {
+      throw new FileSystemException("FreeBlock::write(): " + e);
+    };
+    refs.flush();
+    disk.dedup.flush();
+  }
+
+  // Work done on a single block
+  interface BlockOp {
+    void run(int block) throws IOException;
+  };
+
+  /**
+   * Run <op> on block <b> if it is free, holding the lock of its
+   * allocation group so that it cannot be allocated in the meantime.
+   *
+   * Return = true if <op> was run
+   *
+   * @param b
+   * @param op
+   * @return
+   * @throws IOException
+   */
+  public boolean ifFree(int b, BlockOp op) throws IOException {
+    ReentrantLock lock = locks[b / GROUP_BLOCKS];
+    lock.lock();
+    try {
+      if(!isFree(b)) {
+        return false;
+      };
+      op.run(b);
+      return true;
+    }finally{
+      lock.unlock();
     }
+  }
 
-    if (count < num_blocks) {
-      read(prev_block_num);
-      throw new FileSystemException("There are not " + num_blocks + " free blocks to allocate");
+  // Return = true if block <b> is free and not reserved.  The caller holds
+  // the group lock.
+  private boolean isFree(int b) {
+    return (words[b >>> 6] & (1L << b)) != 0;
+  }
+
+  // Return = true if block <b> is reserved
+  private boolean isHeld(int b) {
+    ReentrantLock lock = locks[b / GROUP_BLOCKS];
+    lock.lock();
+    try {
+      return (held[b >>> 6] & (1L << b)) != 0;
+    }finally{
+      lock.unlock();
     }
+  }
 
-    for(int i = 0; i < num_blocks; i++) {
-      for(int j = 0; j < disk.blockSize; j++) {
-        buffer[j] = (byte) 0x01;
+  // Return = the first block past the end of group <g>
+  private int groupEnd(int g) {
+    return Math.min(disk.numBlocks, (g + 1) * GROUP_BLOCKS);
+  }
+
+  // Return = the first free block at or after <b> in group <g>
+  //          (groupEnd(g) if none).  The caller holds the group lock.
+  private int nextFree(int b, int g) {
+    if(b >= groupEnd(g)) {
+      return groupEnd(g);
+    };
+
+    // In the word of <b>
+    int w = b >>> 6;
+    long bits = words[w] & (-1L << b);
+    if(bits != 0) {
+      return (w << 6) + Long.numberOfTrailingZeros(bits);
+    };
+
+    // In a later word of the group
+    long s = (w & 63) == 63 ? 0 : summary[g] & (-1L << (w + 1));
+    if(s == 0) {
+      return groupEnd(g);
+    };
+    w = (g << 6) + Long.numberOfTrailingZeros(s);
+    return (w << 6) + Long.numberOfTrailingZeros(words[w]);
+  }
+
+  // Return = the first group at or after <g> that is not full (-1 if none).
+  // This is only a hint: the group must be checked again under its lock.
+  private int nextGroup(int g) {
+    if(g >= groupFree.length) {
+      return -1;
+    };
+    synchronized(top) {
+      int t = g >>> 6;
+      long bits = top[t] & (-1L << g);
+      while(bits == 0) {
+        if(++t == top.length) {
+          return -1;
+        };
+        bits = top[t];
+      };
+      return (t << 6) + Long.numberOfTrailingZeros(bits);
+    }
+  }
+
+  // Return = the first allocated block at or after <b> in group <g>
+  //          (groupEnd(g) if none).  The caller holds the group lock.
+  private int nextUsed(int b, int g) {
+    int end = groupEnd(g);
+    if(b >= end || groupFree[g] == end - g * GROUP_BLOCKS) {
+      return end;
+    };
+    int w = b >>> 6;
+    long bits = ~words[w] & (-1L << b);
+    while(bits == 0) {
+      if(++w >= words.length || (w >>> 6) != g) {
+        return end;
+      };
+      bits = ~words[w];
+    };
+    return Math.min(end, (w << 6) + Long.numberOfTrailingZeros(bits));
+  }
+
+  // Return = the home allocation group of the calling thread
+  private int home() {
+    Integer g = home.get();
+    if(g == null) {
+      g = Math.floorMod(nextHome.getAndIncrement(), groupFree.length);
+      home.set(g);
+    };
+    return g;
+  }
+
+  // Make <g> the home allocation group of the calling thread
+  private void setHome(int g) {
+    home.set(g);
+  }
+
+  // Mark blocks [start, start+len) free or allocated, keeping the index
+  // and the bytes of the bitmap up to date
+  private void setRange(int start, int len, boolean free) {
+    change(stored, start, len, free);
+  }
+
+  // Reserve blocks [start, start+len), or hand them back
+  private void hold(int start, int len, boolean reserve) {
+    change(held, start, len, reserve);
+  }
+
+  // Set or clear the bits [start, start+len) of <bits> (stored[] or
+  // held[]), and bring words[] and the index up to date.  Each word is
+  // changed under the lock of its group.
+  private void change(long bits[], int start, int len, boolean set) {
+    int b = start;
+    int end = start + len;
+    while(b < end) {
+      int w = b >>> 6;
+      int n = Math.min(end - b, 64 - (b & 63));
+      long mask = (n == 64 ? -1L : ((1L << n) - 1)) << b;
+      ReentrantLock lock = locks[w >>> 6];
+      lock.lock();
+      try {
+        bits[w] = set ? bits[w] | mask : bits[w] & ~mask;
+        long old = words[w];
+        words[w] = stored[w] & ~held[w];
+        update(w, old);
+      }finally{
+        lock.unlock();
+      };
+      b += n;
+    };
+  }
+
+  // Propagate a change of words[w] (previously <old>) up the index.  The
+  // caller holds the group lock.
+  private void update(int w, long old) {
+    int g = w >>> 6;
+    int delta = Long.bitCount(words[w]) - Long.bitCount(old);
+    groupFree[g] += delta;
+    free.addAndGet(delta);
+    if(words[w] != 0) {
+      summary[g] |= 1L << w;
+    }else{
+      summary[g] &= ~(1L << w);
+    };
+    synchronized(top) {
+      if(groupFree[g] != 0) {
+        top[g >>> 6] |= 1L << g;
+      }else{
+        top[g >>> 6] &= ~(1L << g);
       };
-      write(free[i]);
-      blockPtr[i + start] = free[i];
     }
-    read(prev_block_num);
+    store(w);
+  }
+
+  // Allocate (or reserve) [start, start+len) and add it to <out>.  The
+  // caller holds the group lock.
+  // Return = len
+  private int take(ArrayList<int[]> out, int start, int len, boolean reserve) {
+    if(reserve) {
+      hold(start, len, true);
+    }else{
+      setRange(start, len, false);
+    };
+    out.add(new int[]{start, len});
+    return len;
+  }
+
+  /**
+   * Rebuild stored[] and words[] from the bytes of the bitmap.  Bits that
+   * fall past the end of the disk are never reported as free.  Blocks
+   * reserved before stay reserved.
+   */
+  private void load() {
+    int nbytes = (disk.numBlocks + 7) >>> 3;
+
+    Arrays.fill(stored, 0L);
+    for(int b = 0; b < nbytes; ++b) {
+      byte page[] = pages[b / disk.blockSize];
+      stored[b >>> 3] |= (page[b % disk.blockSize] & 0xffL) << ((b & 7) << 3);
+    };
+
+    int tail = disk.numBlocks & 63;
+    if(tail != 0) {
+      stored[stored.length - 1] &= (1L << tail) - 1;
+    };
+    for(int w = 0; w < words.length; ++w) {
+      words[w] = stored[w] & ~held[w];
+    };
+    index();
+  }
+
+  // Rebuild the upper levels of the index from words[].  The caller holds
+  // every group lock.
+  private void index() {
+    int total = 0;
+    synchronized(top) {
+      Arrays.fill(summary, 0L);
+      Arrays.fill(top, 0L);
+      Arrays.fill(groupFree, 0);
+      for(int w = 0; w < words.length; ++w) {
+        int g = w >>> 6;
+        groupFree[g] += Long.bitCount(words[w]);
+        total += Long.bitCount(words[w]);
+        if(words[w] != 0) {
+          summary[g] |= 1L << w;
+          top[g >>> 6] |= 1L << g;
+        };
+      };
+    }
+    free.set(total);
+  }
+
+  /**
+   * Copy word <w> of stored[] back into the bytes of the bitmap.  Only
+   * the pages whose bytes change have to be written back.
+   *
+   * @param w
+   */
+  private void store(int w) {
+    int nbytes = (disk.numBlocks + 7) >>> 3;
+
+    for(int b = w << 3; b < (w << 3) + 8 && b < nbytes; ++b) {
+      int p = b / disk.blockSize;
+      byte v = (byte) (stored[w] >>> ((b & 7) << 3));
+      synchronized(pages[p]) {
+        if(pages[p][b % disk.blockSize] != v) {
+          pages[p][b % disk.blockSize] = v;
+          dirty[p] = true;
+        };
+      }
+    };
+  }
+
+  // Take every group lock, in order
+  private void lockAll() {
+    for(int g = 0; g < locks.length; ++g) {
+      locks[g].lock();
+    };
+  }
+
+  // Release every group lock
+  private void unlockAll() {
+    for(int g = locks.length - 1; g >= 0; --g) {
+      locks[g].unlock();
+    };
   }
 }
@@ -52,11 +52,8 @@ abstract class FreeBlockAbstract extends Block {
    */
   public void write(int block) throws FileSystemException {
     try{
-      // Move the write head to the proper location
-      disk.fp.seek(block * disk.blockSize);
-
       // Write out the bytes
-      disk.fp.write(buffer);
+      disk.writeMetadata(block, buffer);
     }catch(IOException e){
       // Translate the exception
       throw new FileSystemException("FreeBlock::write(): " + e);
@@ -80,11 +77,8 @@ abstract class FreeBlockAbstract extends Block {
    */
   public void read(int block) throws FileSystemException {
     try{
-      // Move the read head to the proper location of our "disk"
-      disk.fp.seek(block * disk.blockSize);
-
       // Read the data
-      disk.fp.read(buffer);
+      disk.readBlock(block, buffer);
 
       // Remember the location
       block_num = block;
@@ -133,7 +127,7 @@ abstract class FreeBlockAbstract extends Block {
    * @param num_blocks
    * @throws FileSystemException
    */
-  abstract public void DeallocBlocks(short blockPtr[], int num_blocks) throws FileSystemException;
+  abstract public void DeallocBlocks(int blockPtr[], int num_blocks) throws FileSystemException;
 
   /**
    * Allocate num_blocks that were previously free.
@@ -165,6 +159,6 @@ abstract class FreeBlockAbstract extends Block {
    * @param num_blocks
    * @throws FileSystemException
    */
-  abstract public void AllocBlocks(short blockPtr[], int start, int num_blocks)
+  abstract public void AllocBlocks(int blockPtr[], int start, int num_blocks)
       throws FileSystemException;
 };
\ No newline at end of file
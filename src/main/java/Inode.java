@@ -1,44 +1,244 @@
 // Defines the structure of an index node (Inode):
-// used_p: valid inode entry
-// file_p: file (true) or directory (false)
+// version: on-disk format of the inode (V2)
+// used: valid inode entry
+// file: file (true) or directory (false)
 // name: name of the file/directory
-// blockPtr[]: a list of component blocks (only those blocks that are
+// blockPtr: a list of component blocks (only those blocks that are
 // needed are allocated).  For directories, only block 0 is used.
 // Invalid inodes do not have valid blockPtr's
 // size: the size of the file (unused if this is a directory).
+//
+// An Inode is a view of size() bytes at a fixed offset of a directory
+// block image: the accessors read and write those bytes directly, so
+// loading a directory block is a single read and no per-entry copy.  The
+// first byte is 0 for a free inode and the format version otherwise.
+// The flags are in the second byte (file is bit 0); the name follows.
+//
+// V2: an int size and POINTERS int block pointers: NDIRECT direct
+// blocks, then a single indirect block (blockPtr(INDIRECT)) and a double
+// indirect block (blockPtr(DINDIRECT)) holding blockSize/4 int pointers
+// each.  The map holds one pointer per block, so that single blocks can
+// be shared (see RefCount); data is still allocated in contiguous runs
+// (see FreeBlock.AllocExtents()) and read one run at a time.  BlockMap
+// translates file blocks to disk blocks.  The V1 format of short
+// pointers, and its extent lists, is not supported any more: disks that
+// may hold it are refused until they are formatted again.
+//
+// Inline (bit 2 of the second byte): the file has no
+// blocks, and its bytes are stored where the block pointers would be (up
+// to inlineCapacity() bytes).  New files start inline and move to blocks
+// when they outgrow the inode.
+//
+// Compressed (bit 3): the blocks of the file are grouped in
+// chunks that are stored deflated (see ChunkMap).  The flag survives
+// clearBlocks(), so a compressed file stays compressed when it is emptied
+// or goes inline.
 
 import java.util.*;
 import java.lang.*;
+import java.nio.*;
 import java.io.*;
 
 
 class Inode {
-  ////// These are the data that will be written to the disk
-  public boolean used_p;      // true -> inode is in use
-  public boolean file_p;      // true -> file, false -> directory
-  public byte name[];         // Name of file
-  public short blockPtr[];    // Array of references to disk blocks
-  public short size;          // Length of file in bytes
-  //////
+  static final int V2 = 2;            // Int size, direct and indirect pointers
+  static final int NDIRECT = 7;       // Direct block pointers of a V2 inode
+  static final int INDIRECT = 7;      // Index of the single indirect pointer
+  static final int DINDIRECT = 8;     // Index of the double indirect pointer
+  static final int POINTERS = 9;      // Block pointers of a V2 inode
+
+  static final int FILE = 1;          // Flags (second byte)
+  static final int INLINE = 4;
+  static final int COMPRESSED = 8;
 
   // Internal variables
+  private ByteBuffer image;   // Directory block image holding this inode
+  private int base;           // Offset of the inode in <image>
   private int mxFileBlock;    // Maximum number of blocks that can be used
   //   for file contents
   private int nameSz;         // The maximum file/directory name
 
   /**
-   * Create a new inode.  nameSize and maxFileBlock are constants provided by the file system.
+   * Create a view of the inode stored at offset <offset> of <buf>.
+   * nameSize and maxFileBlock are constants provided by the file system.
+   * @param buf
+   * @param offset
    * @param nameSize
    * @param maxFileBlock
    */
-  public Inode(int nameSize, int maxFileBlock) {
-    used_p = false;
-    file_p = true;
-    name = new byte[nameSize];
-    blockPtr = new short[maxFileBlock];
+  public Inode(ByteBuffer buf, int offset, int nameSize, int maxFileBlock) {
+    image = buf;
+    base = offset;
     mxFileBlock = maxFileBlock;
     nameSz = nameSize;
-    size = 0;
+  };
+
+  /**
+   * Return = the number of bytes an inode with these parameters occupies
+   *          on the disk (room for maxFileBlock short pointers, which the
+   *          V2 pointers fit in)
+   *
+   * @param nameSize
+   * @param maxFileBlock
+   * @return
+   */
+  static public int size(int nameSize, int maxFileBlock) {
+    return 2 + nameSize + 2 + 2 * maxFileBlock;
+  };
+
+  public boolean isUsed() {
+    return image.get(base) != 0;
+  };
+
+  public int getVersion() {
+    return image.get(base) & 0xff;
+  };
+
+  public boolean isFile() {
+    return (image.get(base + 1) & FILE) != 0;
+  };
+
+  public boolean isInline() {
+    return (image.get(base + 1) & INLINE) != 0;
+  };
+
+  /**
+   * Store the file inline (true) or in blocks (false).  The size and the
+   * pointer/payload bytes are left as they are.
+   *
+   * @param inline
+   */
+  public void setInline(boolean inline) {
+    int flags = image.get(base + 1);
+    image.put(base + 1, (byte) (inline ? flags | INLINE : flags & ~INLINE));
+  };
+
+  public boolean isCompressed() {
+    return (image.get(base + 1) & COMPRESSED) != 0;
+  };
+
+  /**
+   * Mark the blocks of the file as compressed (true) or plain (false).
+   * The blocks themselves are left as they are.
+   *
+   * @param compressed
+   */
+  public void setCompressed(boolean compressed) {
+    int flags = image.get(base + 1);
+    image.put(base + 1, (byte) (compressed ? flags | COMPRESSED : flags & ~COMPRESSED));
+  };
+
+  /**
+   * Return = the largest file that can be stored inline
+   *
+   * @return
+   */
+  public int inlineCapacity() {
+    return size(nameSz, mxFileBlock) - (6 + nameSz);
+  };
+
+  /**
+   * Copy <len> inline bytes, starting at byte <offset> of the file, to
+   * dst[dstOff ... dstOff+len-1].
+   *
+   * @param offset
+   * @param dst
+   * @param dstOff
+   * @param len
+   */
+  public void getInline(int offset, byte[] dst, int dstOff, int len) {
+    System.arraycopy(image.array(), base + 6 + nameSz + offset, dst, dstOff, len);
+  };
+
+  /**
+   * Copy <len> inline bytes, starting at byte <offset> of the file, to <dst>.
+   *
+   * @param offset
+   * @param dst
+   * @param len
+   */
+  public void getInline(int offset, ByteBuffer dst, int len) {
+    dst.put(image.array(), base + 6 + nameSz + offset, len);
+  };
+
+  /**
+   * Copy src[srcOff ... srcOff+len-1] to the inline bytes, starting at
+   * byte <offset> of the file.
+   *
+   * @param offset
+   * @param src
+   * @param srcOff
+   * @param len
+   */
+  public void putInline(int offset, byte[] src, int srcOff, int len) {
+    System.arraycopy(src, srcOff, image.array(), base + 6 + nameSz + offset, len);
+  };
+
+  /**
+   * Return = the length of the file in bytes
+   *
+   * @return
+   */
+  public int getSize() {
+    return image.getInt(base + 2 + nameSz);
+  };
+
+  /**
+   * Set the length of the file to <size> bytes.
+   *
+   * @param size
+   */
+  public void setSize(int size) {
+    image.putInt(base + 2 + nameSz, size);
+  };
+
+  /**
+   * Return = block pointer <i>
+   *
+   * @param i
+   * @return
+   */
+  public int getBlockPtr(int i) {
+    return image.getInt(base + 6 + nameSz + 4 * i);
+  };
+
+  /**
+   * Set block pointer <i> to <block>
+   *
+   * @param i
+   * @param block
+   */
+  public void setBlockPtr(int i, int block) {
+    image.putInt(base + 6 + nameSz + 4 * i, block);
+  };
+
+  /**
+   * Forget the size and every block pointer.
+   *
+   * Effects:
+   * 1. The inode is an empty V2 inode (the blocks must be released
+   *    separately); a file is inline, and stays compressed if it was
+   */
+  public void clearBlocks() {
+    image.put(base, (byte) V2);
+    image.put(base + 1, (byte) (isFile() ? FILE | INLINE | (image.get(base + 1) & COMPRESSED) : 0));
+    for(int i = base + 2 + nameSz; i < base + size(nameSz, mxFileBlock); ++i) {
+      image.put(i, (byte) 0);
+    };
+  };
+
+  /**
+   * Make this inode a copy of <other>, name excepted.  The blocks are not
+   * copied: both inodes refer to the same ones (see BlockMap.share()).
+   *
+   * @param other
+   */
+  public void copyFrom(Inode other) {
+    image.put(base, other.image.get(other.base));
+    image.put(base + 1, other.image.get(other.base + 1));
+    for(int i = 2 + nameSz; i < size(nameSz, mxFileBlock); ++i) {
+      image.put(base + i, other.image.get(other.base + i));
+    };
   };
 
   /**
@@ -54,8 +254,8 @@ class Inode {
     String tab = "                                                             ";
     String str = base + "/" + getName();
 
-    if(file_p) {
-      str += tab.substring(1, tab.length() - str.length()) + size;
+    if(isFile()) {
+      str += tab.substring(1, tab.length() - str.length()) + getSize();
     }else{
       str += "/";
     };
@@ -64,7 +264,7 @@ class Inode {
 
   /**
    * Allocate the inode.  Set the inode's name to <name>, and
-   * file_p according to <file_flag>.
+   * file according to <file_flag>.
    * Note that no blockPtr's are allocated.
    *
    * Effects:
@@ -81,9 +281,18 @@ class Inode {
       throws FileSystemException {
 
     setName(name);
-    used_p = true;
-    file_p = file_flag;
-    size = 0;
+    image.put(base + 1, (byte) (file_flag ? FILE : 0));
+    clearBlocks();
+  };
+
+  /**
+   * Release the inode.
+   *
+   * Effects:
+   * 1. The inode is no longer in use
+   */
+  public void Dealloc() {
+    image.put(base, (byte) 0);
   };
 
   /**
@@ -96,6 +305,10 @@ class Inode {
    * @return
    */
   public String getName() {
+    byte name[] = new byte[nameSz];
+    for(int i = 0; i < nameSz; ++i) {
+      name[i] = image.get(base + 2 + i);
+    };
     String out = "";
     try {
       // Create a new string from the ascii array
@@ -127,7 +340,7 @@ class Inode {
   public void setName(String str) throws FileSystemException{
 
     // Check for valid name
-    if(!str.matches("^[\\w\\._]+$")) {
+    if(str.length() == 0 || !validName(str, 0, str.length(), false)) {
       throw new FileSystemException("Ill-formed file name (" + str + ").");
     };
 
@@ -136,94 +349,89 @@ class Inode {
       throw new FileSystemException("Name too long  (" + str + ").");
     };
 
-    // Do the translation
-    try {
-      byte[] bytes = str.getBytes("US-ASCII");
-      int i;
-
-      // Copy into the internal byte array
-      for(i = 0; i < str.length(); ++i) {
-        name[i] = bytes[i];
-      };
-      // Zero out remaining elements
-      for(i = str.length(); i < nameSz; ++i) {
-        name[i] = 0;
-      };
-
-    }catch(UnsupportedEncodingException e){
-      System.out.println("Inode::setName(): " + e);
-      System.exit(1);
+    // Copy into the image, zero filling the remaining elements.  Valid
+    // names are ASCII, so every char is one byte.
+    for(int i = 0; i < nameSz; ++i) {
+      image.put(base + 2 + i, i < str.length() ? (byte) str.charAt(i) : 0);
     };
   };
 
   /**
-   * Write the inode to the file.  Assume that the write head
-   * has already been positioned in the correct place.
-   *
-   * Effects:
-   * 1. Alters the disk at the current write head
-   * 2. The write head is left at the end of this Inode
-   *
-   * Return = nothing
+   * Effects: none
    *
-   * throws FileSystemException if:
-   * 1. There is a write error.
+   * Return = true if this inode's name is str[start ... end-1]
    *
-   * @param fp
-   * @throws FileSystemException
+   * @param str
+   * @param start
+   * @param end
+   * @return
    */
-  public void write(RandomAccessFile fp) throws FileSystemException {
-    int i;
-
-    try{
-      fp.writeBoolean(used_p);  // byte 0->1
-      fp.writeBoolean(file_p);  // byte 2->3
-      fp.write(name);           // byte 4->4+nameSize-1
-      fp.writeShort(size);      // next 2 bytes
-      for(i = 0; i < mxFileBlock; ++i) {
-        fp.writeShort(blockPtr[i]);   // 2 bytes each
+  public boolean nameEquals(String str, int start, int end) {
+    int len = end - start;
+    if(len > nameSz) {
+      return false;
+    };
+    for(int i = 0; i < len; ++i) {
+      if(image.get(base + 2 + i) != str.charAt(start + i)) {
+        return false;
       };
-    }catch(IOException e) {
-      throw new FileSystemException("Inode::write() error:" + e);
     };
+    return len == nameSz || image.get(base + 2 + len) == 0;
   };
 
   /**
-   * Read the inode from the file.  Assume that the read head
-   * has already been positioned in the correct place.
-   *
-   * Effects:
-   * 1. Sets the current Inode state based upon the bytes
-   *    retrieved from the file at the current read location
-   * 2. Leaves the read head at the end of this Inode.
-   *
-   * throws FileSystemException if:
-   * 1. There is a read error.
+   * Return = the hash of this inode's name (see hashName())
    *
-   * @param fp
-   * @throws FileSystemException
+   * @return
    */
-  public void read(RandomAccessFile fp) throws FileSystemException {
-    int i;
-    try{
-      // Used?
-      used_p = fp.readBoolean();
-
-      // A file?
-      file_p = fp.readBoolean();
-
-      // Name of the Inode
-      fp.read(name);
+  public int nameHash() {
+    int h = 0x811c9dc5;
+    for(int i = 0; i < nameSz; ++i) {
+      byte c = image.get(base + 2 + i);
+      if(c == 0) {
+        break;
+      };
+      h = (h ^ c) * 0x01000193;
+    };
+    return h;
+  };
 
-      // Size of the Inode
-      size = fp.readShort();
+  /**
+   * Return = the hash of the name str[start ... end-1]; equal names have
+   *          equal hashes, whether they are Strings or inode names
+   *
+   * @param str
+   * @param start
+   * @param end
+   * @return
+   */
+  static public int hashName(String str, int start, int end) {
+    int h = 0x811c9dc5;
+    for(int i = start; i < end; ++i) {
+      h = (h ^ (byte) str.charAt(i)) * 0x01000193;
+    };
+    return h;
+  };
 
-      // Read the set of block pointers
-      for(i = 0; i < mxFileBlock; ++i) {
-        blockPtr[i] = fp.readShort();
+  /**
+   * Return = true if every char of str[start ... end-1] may be used in a
+   *          name: ASCII letters, digits, '_' and '.', plus '/' if
+   *          <slashes> is set
+   *
+   * @param str
+   * @param start
+   * @param end
+   * @param slashes
+   * @return
+   */
+  static public boolean validName(String str, int start, int end, boolean slashes) {
+    for(int i = start; i < end; ++i) {
+      char c = str.charAt(i);
+      if(!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+           || c == '_' || c == '.' || (slashes && c == '/'))) {
+        return false;
       };
-    }catch(IOException e) {
-      throw new FileSystemException("Inode::read() error: " + e);
     };
+    return true;
   };
-};
\ No newline at end of file
+};
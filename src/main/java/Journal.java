@@ -0,0 +1,405 @@
+// Write-ahead journal for metadata blocks.
+//
+// The journal occupies blocks [start, start + length) of the disk.  The
+// first of these is the journal superblock; the rest hold a log of
+// records.  Each record is a descriptor block listing the home block
+// numbers, the images of those blocks, and a commit block carrying a
+// CRC32 of the images.  A record is only replayed if its sequence number
+// is the next one expected and its checksum matches.
+//
+// A metadata block that is freed may be reused for file data, which does
+// not go through the log, while older records still hold its metadata
+// image.  The descriptor of the next record lists such blocks as revoked:
+// recover() does not replay the image of a revoked block from a record
+// older than the one that revoked it.
+//
+// Transactions (the metadata images written by one file system operation)
+// are assigned a log sequence number (LSN) when they are committed.
+// force(lsn) makes them durable: the first thread to arrive writes every
+// pending transaction as a group and pays for a single device flush;
+// threads that arrive while that happens wait and are usually covered by
+// the next group.
+//
+// Layout of the superblock: magic, sequence number of the first record,
+//                           version of the disk layout.
+// Layout of a descriptor:   magic, sequence, count, revoked, count block
+//                           numbers, revoked block numbers.
+// Layout of a commit block: magic, sequence, CRC32 of the descriptor and
+//                           the images.
+
+import java.util.*;
+import java.io.*;
+import java.nio.*;
+import java.util.zip.*;
+
+class Journal {
+  static final int SUPER_MAGIC = 0x53464a4c;    // "SFJL"
+  static final int DESC_MAGIC = 0x53464a44;     // "SFJD"
+  static final int COMMIT_MAGIC = 0x53464a43;   // "SFJC"
+  static final int LAYOUT = 2;                  // Version of the layout written by format()
+
+  private BlockDevice device;
+  private int blockSize;
+  private int start;                  // Journal superblock
+  private int length;                 // Blocks in the journal (superblock included)
+
+  private int head;                   // Next free log block
+  private int seq;                    // Sequence number of the next record
+  private boolean formatted;          // A valid superblock was found
+
+  // Committed transactions that have not been written to the log yet
+  private ArrayList<Transaction> pending;
+  private long nextLsn;
+  private long durableLsn;
+  private boolean writing;            // A group is being written
+
+  // Latest durable image of every block logged since the last checkpoint
+  private LinkedHashMap<Integer, byte[]> logged;
+
+  /**
+   * Metadata images written by one operation, in the order of first write.
+   */
+  static class Transaction {
+    LinkedHashMap<Integer, byte[]> images = new LinkedHashMap<Integer, byte[]>();
+    ArrayList<int[]> freed = new ArrayList<int[]>();     // {start, length} released by the operation
+    // Cached contents of the blocks before their first write (null if
+    // they were not cached), so that Disk can undo an aborted operation
+    HashMap<Integer, byte[]> before = new HashMap<Integer, byte[]>();
+    long lsn;
+  };
+
+  public Journal(BlockDevice dev, int st, int len) {
+    device = dev;
+    blockSize = dev.blockSize();
+    start = st;
+    length = len;
+    pending = new ArrayList<Transaction>();
+    logged = new LinkedHashMap<Integer, byte[]>();
+    nextLsn = 0;
+    durableLsn = 0;
+    formatted = false;
+  };
+
+  /**
+   * Return = true if the disk holds a journal (it has been formatted with
+   *          the current layout)
+   *
+   * @return
+   */
+  public synchronized boolean isFormatted() {
+    return formatted;
+  };
+
+  /**
+   * Return = the largest number of distinct blocks a single record can hold
+   *
+   * @return
+   */
+  public int maxBlocks() {
+    return Math.min((blockSize - 16) / 4, length - 3);
+  };
+
+  /**
+   * Initialize an empty journal (part of formatting the disk).
+   *
+   * Effects:
+   * 1. Writes a fresh superblock and forgets all pending state
+   *
+   * @throws IOException
+   */
+  public synchronized void format() throws IOException {
+    pending.clear();
+    logged.clear();
+    durableLsn = nextLsn;
+    seq = 1;
+    writeSuper();
+    device.flush();
+    head = start + 1;
+    formatted = true;
+  };
+
+  /**
+   * Replay every complete record found in the log, then empty it.
+   * Does nothing if the disk has never been formatted with a journal, or
+   * was formatted with another layout: everything past the root directory
+   * may mean something else there.
+   *
+   * Effects:
+   * 1. Home blocks of all committed records are (re)written
+   *
+   * Return = the number of records replayed
+   *
+   * @return
+   * @throws IOException
+   */
+  public synchronized int recover() throws IOException {
+    byte buf[] = new byte[blockSize];
+    device.read(start, buf, 0);
+    ByteBuffer sb = ByteBuffer.wrap(buf);
+    if(sb.getInt(0) != SUPER_MAGIC || sb.getInt(8) != LAYOUT) {
+      formatted = false;
+      return 0;
+    };
+    formatted = true;
+    seq = sb.getInt(4);
+
+    // Read the complete records first: a block may be revoked by a
+    // record that follows the ones holding its image
+    ArrayList<LinkedHashMap<Integer, byte[]>> records = new ArrayList<LinkedHashMap<Integer, byte[]>>();
+    HashMap<Integer, Integer> revoked = new HashMap<Integer, Integer>();   // Block -> last record that revoked it
+    int pos = start + 1;
+    while(true) {
+      ArrayList<Integer> revokes = new ArrayList<Integer>();
+      LinkedHashMap<Integer, byte[]> images = readRecord(pos, seq + records.size(), revokes);
+      if(images == null) {
+        break;
+      };
+      for(int b: revokes) {
+        revoked.put(b, records.size());
+      };
+      records.add(images);
+      pos += images.size() + 2;
+    };
+
+    for(int r = 0; r < records.size(); ++r) {
+      for(Map.Entry<Integer, byte[]> e: records.get(r).entrySet()) {
+        Integer by = revoked.get(e.getKey());
+        if(by == null || by <= r) {
+          device.write(e.getKey(), e.getValue(), 0);
+        };
+      };
+    };
+    int replayed = records.size();
+    seq += replayed;
+
+    // Home blocks are up to date: start again with an empty log
+    device.flush();
+    writeSuper();
+    device.flush();
+    head = start + 1;
+    return replayed;
+  };
+
+  /**
+   * Assign the next LSN to <tx> and queue it for the log.
+   * Does not wait for the transaction to become durable.
+   *
+   * throws IOException if:
+   * 1. The transaction is too large for the journal
+   *
+   * @param tx
+   * @return the LSN of the transaction
+   * @throws IOException
+   */
+  public synchronized long commit(Transaction tx) throws IOException {
+    if(tx.images.size() > maxBlocks()) {
+      throw new IOException("Transaction of " + tx.images.size() + " blocks does not fit in the journal");
+    };
+    tx.lsn = ++nextLsn;
+    pending.add(tx);
+    return tx.lsn;
+  };
+
+  /**
+   * Return once every transaction up to <lsn> is durable in the log.
+   * Concurrent callers are served by one group write and one flush.
+   *
+   * @param lsn
+   * @throws IOException
+   */
+  public void force(long lsn) throws IOException {
+    while(true) {
+      ArrayList<Transaction> group;
+      synchronized(this) {
+        while(durableLsn < lsn && writing) {
+          try {
+            wait();
+          }catch(InterruptedException e) {
+            throw new InterruptedIOException("Journal::force()");
+          };
+        };
+        if(durableLsn >= lsn) {
+          return;
+        };
+        // Become the leader for everything queued so far
+        writing = true;
+        group = pending;
+        pending = new ArrayList<Transaction>();
+      }
+
+      boolean ok = false;
+      try {
+        writeGroup(group);
+        ok = true;
+      }finally{
+        synchronized(this) {
+          if(ok) {
+            durableLsn = group.get(group.size() - 1).lsn;
+          }else{
+            // Put the transactions back so a later force() retries them
+            group.addAll(pending);
+            pending = group;
+          };
+          writing = false;
+          notifyAll();
+        }
+      };
+    }
+  };
+
+  /**
+   * Return = the LSN up to which the log is known to be durable
+   *
+   * @return
+   */
+  public synchronized long durableLsn() {
+    return durableLsn;
+  };
+
+  /**
+   * Write a group of transactions to the log followed by a single flush.
+   * Transactions are packed into as few records as possible; a record
+   * never splits a transaction.  Called by the group leader only.
+   */
+  private void writeGroup(ArrayList<Transaction> group) throws IOException {
+    if(!formatted) {
+      throw new IOException("The disk has no journal (format it first)");
+    };
+
+    LinkedHashMap<Integer, byte[]> record = new LinkedHashMap<Integer, byte[]>();
+    LinkedHashSet<Integer> revokes = new LinkedHashSet<Integer>();
+    for(Transaction tx: group) {
+      LinkedHashMap<Integer, byte[]> merged = new LinkedHashMap<Integer, byte[]>(record);
+      merged.putAll(tx.images);
+      if(merged.size() + revokes.size() > maxBlocks()) {
+        writeRecord(record, revokes);
+        merged = new LinkedHashMap<Integer, byte[]>(tx.images);
+        revokes = new LinkedHashSet<Integer>();
+      };
+      record = merged;
+
+      // Blocks freed by the transaction may be reused for file data, which
+      // does not go through the log: a checkpoint must not write their
+      // last metadata image over it, and neither must recover(), so the
+      // blocks that are in earlier records are revoked
+      for(int[] e: tx.freed) {
+        for(int b = e[0]; b < e[0] + e[1]; ++b) {
+          record.remove(b);
+          if(logged.remove(b) != null) {
+            if(record.size() + revokes.size() >= maxBlocks()) {
+              writeRecord(record, revokes);
+              record = new LinkedHashMap<Integer, byte[]>();
+              revokes = new LinkedHashSet<Integer>();
+            };
+            revokes.add(b);
+          };
+        };
+      };
+    };
+    if(!record.isEmpty() || !revokes.isEmpty()) {
+      writeRecord(record, revokes);
+    };
+    device.flush();
+  };
+
+  /**
+   * Append one record to the log, checkpointing first if it does not fit.
+   * A checkpoint writes no revoked block back, and empties the log, so
+   * the revocations are not needed after one.
+   */
+  private void writeRecord(LinkedHashMap<Integer, byte[]> images, Set<Integer> revokes) throws IOException {
+    if(head + images.size() + 2 > start + length) {
+      checkpoint();
+    };
+
+    byte buf[] = new byte[blockSize];
+    ByteBuffer b = ByteBuffer.wrap(buf);
+    b.putInt(DESC_MAGIC).putInt(seq).putInt(images.size()).putInt(revokes.size());
+    for(int block: images.keySet()) {
+      b.putInt(block);
+    };
+    for(int block: revokes) {
+      b.putInt(block);
+    };
+    CRC32 crc = new CRC32();
+    crc.update(buf, 0, blockSize);
+    for(byte image[]: images.values()) {
+      crc.update(image, 0, blockSize);
+    };
+    device.write(head++, buf, 0);
+
+    for(byte image[]: images.values()) {
+      device.write(head++, image, 0);
+    };
+
+    Arrays.fill(buf, (byte) 0);
+    b.clear();
+    b.putInt(COMMIT_MAGIC).putInt(seq).putInt((int) crc.getValue());
+    device.write(head++, buf, 0);
+    seq++;
+
+    logged.putAll(images);
+  };
+
+  /**
+   * Write the latest image of every logged block to its home location,
+   * make that durable, and empty the log.
+   */
+  private void checkpoint() throws IOException {
+    for(Map.Entry<Integer, byte[]> e: logged.entrySet()) {
+      device.write(e.getKey(), e.getValue(), 0);
+    };
+    device.flush();
+    logged.clear();
+    writeSuper();
+    device.flush();
+    head = start + 1;
+  };
+
+  /**
+   * Read the record at block <pos>, returning its images (and adding the
+   * blocks it revokes to <revokes>) if it is a complete record with
+   * sequence number <expect>, or null otherwise.
+   */
+  private LinkedHashMap<Integer, byte[]> readRecord(int pos, int expect, List<Integer> revokes) throws IOException {
+    if(pos + 2 > start + length) {
+      return null;
+    };
+    byte desc[] = new byte[blockSize];
+    device.read(pos, desc, 0);
+    ByteBuffer d = ByteBuffer.wrap(desc);
+    int count = d.getInt(8);
+    int nrevoked = d.getInt(12);
+    if(d.getInt(0) != DESC_MAGIC || d.getInt(4) != expect
+        || count < 0 || nrevoked < 0 || count + nrevoked > maxBlocks() || pos + count + 2 > start + length) {
+      return null;
+    };
+
+    LinkedHashMap<Integer, byte[]> images = new LinkedHashMap<Integer, byte[]>();
+    CRC32 crc = new CRC32();
+    crc.update(desc, 0, blockSize);
+    for(int i = 0; i < count; ++i) {
+      byte image[] = new byte[blockSize];
+      device.read(pos + 1 + i, image, 0);
+      crc.update(image, 0, blockSize);
+      images.put(d.getInt(16 + 4 * i), image);
+    };
+
+    byte commit[] = new byte[blockSize];
+    device.read(pos + 1 + count, commit, 0);
+    ByteBuffer c = ByteBuffer.wrap(commit);
+    if(c.getInt(0) != COMMIT_MAGIC || c.getInt(4) != expect || c.getInt(8) != (int) crc.getValue()) {
+      return null;
+    };
+    for(int i = 0; i < nrevoked; ++i) {
+      revokes.add(d.getInt(16 + 4 * (count + i)));
+    };
+    return images;
+  };
+
+  private void writeSuper() throws IOException {
+    byte buf[] = new byte[blockSize];
+    ByteBuffer.wrap(buf).putInt(SUPER_MAGIC).putInt(seq).putInt(LAYOUT);
+    device.write(start, buf, 0);
+  };
+};
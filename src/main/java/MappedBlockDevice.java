@@ -0,0 +1,107 @@
+// Block device over a memory mapping of the image file.  Block reads and
+// writes are memory copies; flush() forces the mapped pages to the file.
+// Images larger than a single mapping are split into several segments,
+// each holding a whole number of blocks.
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+class MappedBlockDevice implements BlockDevice {
+  private int blockSize;
+  private int numBlocks;
+  private int blocksPerSegment;
+  private RandomAccessFile fp;
+  private MappedByteBuffer segments[];
+
+  public MappedBlockDevice(String fname, int bs, int nb) throws IOException {
+    blockSize = bs;
+    numBlocks = nb;
+    blocksPerSegment = (1 << 30) / bs;
+    fp = new RandomAccessFile(fname, "rw");
+
+    // Map the full extent of the disk (grows the file if needed)
+    int n = (nb + blocksPerSegment - 1) / blocksPerSegment;
+    segments = new MappedByteBuffer[n];
+    for(int i = 0; i < n; ++i) {
+      long start = (long) i * blocksPerSegment;
+      long count = Math.min(blocksPerSegment, nb - start);
+      segments[i] = fp.getChannel().map(FileChannel.MapMode.READ_WRITE,
+          start * bs, count * bs);
+    };
+  };
+
+  public int blockSize() {
+    return blockSize;
+  };
+
+  public int numBlocks() {
+    return numBlocks;
+  };
+
+  public void read(int block, byte buf[], int off) {
+    ByteBuffer b = segments[block / blocksPerSegment].duplicate();
+    b.position((block % blocksPerSegment) * blockSize);
+    b.get(buf, off, blockSize);
+  };
+
+  // A run within one segment is a single copy
+  public void read(int block, int count, byte buf[], int off) throws IOException {
+    int first = block % blocksPerSegment;
+    if(first + count > blocksPerSegment) {
+      BlockDevice.super.read(block, count, buf, off);
+      return;
+    };
+    ByteBuffer b = segments[block / blocksPerSegment].duplicate();
+    b.position(first * blockSize);
+    b.get(buf, off, count * blockSize);
+  };
+
+  // One copy from the mapping per segment
+  public void read(int block, int skip, ByteBuffer dst) {
+    while(dst.hasRemaining()) {
+      ByteBuffer b = segments[block / blocksPerSegment].duplicate();
+      b.position((block % blocksPerSegment) * blockSize + skip);
+      if(b.remaining() > dst.remaining()) {
+        b.limit(b.position() + dst.remaining());
+      };
+      dst.put(b);
+      block = (block / blocksPerSegment + 1) * blocksPerSegment;
+      skip = 0;
+    };
+  };
+
+  // The mapped pages are written to <target> as they are
+  public void transferTo(int block, int skip, int length, WritableByteChannel target) throws IOException {
+    while(length > 0) {
+      ByteBuffer b = segments[block / blocksPerSegment].duplicate();
+      b.position((block % blocksPerSegment) * blockSize + skip);
+      if(b.remaining() > length) {
+        b.limit(b.position() + length);
+      };
+      length -= b.remaining();
+      while(b.hasRemaining()) {
+        target.write(b);
+      };
+      block = (block / blocksPerSegment + 1) * blocksPerSegment;
+      skip = 0;
+    };
+  };
+
+  public void write(int block, byte buf[], int off) {
+    ByteBuffer b = segments[block / blocksPerSegment].duplicate();
+    b.position((block % blocksPerSegment) * blockSize);
+    b.put(buf, off, blockSize);
+  };
+
+  public void flush() {
+    for(MappedByteBuffer m: segments) {
+      m.force();
+    };
+  };
+
+  public void close() throws IOException {
+    flush();
+    fp.close();
+  };
+};
@@ -0,0 +1,91 @@
+// Block device that lives entirely on the heap.  Blocks are allocated on
+// first write, so an untouched device costs almost nothing; the contents
+// are lost when the process exits.
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+class MemoryBlockDevice implements BlockDevice {
+  private int blockSize;
+  private byte blocks[][];            // null until the block is first written
+
+  public MemoryBlockDevice(int bs, int nb) {
+    blockSize = bs;
+    blocks = new byte[nb][];
+  };
+
+  public int blockSize() {
+    return blockSize;
+  };
+
+  public int numBlocks() {
+    return blocks.length;
+  };
+
+  public void read(int block, byte buf[], int off) throws IOException {
+    byte b[] = blocks[block];
+    if(b == null) {
+      Arrays.fill(buf, off, off + blockSize, (byte) 0);
+    }else{
+      System.arraycopy(b, 0, buf, off, blockSize);
+    };
+  };
+
+  public void read(int block, int skip, ByteBuffer dst) {
+    for(; dst.hasRemaining(); block++, skip = 0) {
+      int n = Math.min(blockSize - skip, dst.remaining());
+      byte b[] = blocks[block];
+      if(b == null) {
+        for(int i = 0; i < n; ++i) {
+          dst.put((byte) 0);
+        };
+      }else{
+        dst.put(b, skip, n);
+      };
+    };
+  };
+
+  // The block arrays are handed to <target> in one gathering write
+  public void transferTo(int block, int skip, int length, WritableByteChannel target) throws IOException {
+    if(!(target instanceof GatheringByteChannel)) {
+      BlockDevice.super.transferTo(block, skip, length, target);
+      return;
+    };
+    ByteBuffer bufs[] = new ByteBuffer[(skip + length + blockSize - 1) / blockSize];
+    for(int i = 0; i < bufs.length; ++i, skip = 0) {
+      int n = Math.min(blockSize - skip, length);
+      byte b[] = blocks[block + i];
+      bufs[i] = b == null ? ByteBuffer.allocate(n) : ByteBuffer.wrap(b, skip, n);
+      length -= n;
+    };
+    GatheringByteChannel out = (GatheringByteChannel) target;
+    while(bufs[bufs.length - 1].hasRemaining()) {
+      out.write(bufs);
+    };
+  };
+
+  public void write(int block, byte buf[], int off) throws IOException {
+    byte b[] = blocks[block];
+    if(b == null) {
+      b = new byte[blockSize];
+      blocks[block] = b;
+    };
+    System.arraycopy(buf, off, b, 0, blockSize);
+  };
+
+  // Discarded blocks give their memory back
+  public boolean discard(int block, int count) {
+    for(int i = block; i < block + count; ++i) {
+      blocks[i] = null;
+    };
+    return true;
+  };
+
+  public void flush() {
+  };
+
+  public void close() {
+  };
+};
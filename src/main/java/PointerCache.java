@@ -0,0 +1,95 @@
+// Cache of decoded indirect blocks.  Mapping a block of a large file walks
+// one or two indirect blocks; keeping the most recently used ones decoded
+// here means random reads do not pay a disk read (or a decode) per walk.
+// Indirect blocks are metadata: they are written through the journal.
+
+import java.util.*;
+import java.nio.*;
+import java.io.*;
+
+class PointerCache {
+  private Disk disk;
+  private LinkedHashMap<Integer, int[]> blocks;
+
+  public long hits;                   // Lookups served from the cache
+  public long misses;                 // Lookups that read the disk
+
+  /**
+   * Create a cache of at most <capacity> indirect blocks.
+   *
+   * @param dsk
+   * @param capacity
+   */
+  public PointerCache(Disk dsk, final int capacity) {
+    disk = dsk;
+    // Access ordered, so the eldest entry is the least recently used one
+    blocks = new LinkedHashMap<Integer, int[]>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<Integer, int[]> eldest) {
+        return size() > capacity;
+      }
+    };
+  };
+
+  /**
+   * Return = the pointers held by indirect block <block>.  The array is
+   *          shared with the cache: changes must be saved with write().
+   *
+   * throws IOException if:
+   * 1. There is a read error
+   *
+   * @param block
+   * @return
+   * @throws IOException
+   */
+  public synchronized int[] get(int block) throws IOException {
+    int ptrs[] = blocks.get(block);
+    if(ptrs != null) {
+      hits++;
+      return ptrs;
+    };
+    misses++;
+    byte buf[] = new byte[disk.blockSize];
+    disk.readBlock(block, buf);
+    ptrs = new int[disk.blockSize / 4];
+    ByteBuffer.wrap(buf).asIntBuffer().get(ptrs);
+    blocks.put(block, ptrs);
+    return ptrs;
+  };
+
+  /**
+   * Write the pointers <ptrs> to indirect block <block>.
+   *
+   * throws IOException if:
+   * 1. There is a write error
+   *
+   * @param block
+   * @param ptrs
+   * @throws IOException
+   */
+  public synchronized void write(int block, int[] ptrs) throws IOException {
+    byte buf[] = new byte[disk.blockSize];
+    ByteBuffer.wrap(buf).asIntBuffer().put(ptrs);
+    disk.writeMetadata(block, buf);
+    blocks.put(block, ptrs);
+  };
+
+  /**
+   * Forget block <block> (it is no longer an indirect block).
+   *
+   * @param block
+   */
+  public synchronized void remove(int block) {
+    blocks.remove(block);
+  };
+
+  /**
+   * Forget every block.
+   */
+  public synchronized void clear() {
+    blocks.clear();
+  };
+
+  public synchronized String stats() {
+    return "pointer cache: " + blocks.size() + " blocks, " + hits + " hits, " + misses + " misses";
+  };
+};
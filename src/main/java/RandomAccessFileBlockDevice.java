@@ -0,0 +1,104 @@
+// Block device over a RandomAccessFile: every block access is a seek
+// followed by a read or a write.
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+class RandomAccessFileBlockDevice implements BlockDevice {
+  private int blockSize;
+  private int numBlocks;
+  private RandomAccessFile fp;
+
+  public RandomAccessFileBlockDevice(String fname, int bs, int nb) throws IOException {
+    blockSize = bs;
+    numBlocks = nb;
+    fp = new RandomAccessFile(fname, "rw");
+  };
+
+  public int blockSize() {
+    return blockSize;
+  };
+
+  public int numBlocks() {
+    return numBlocks;
+  };
+
+  // The seek and the transfer must not be interleaved with another thread
+  public void read(int block, byte buf[], int off) throws IOException {
+    read(block, 1, buf, off);
+  };
+
+  // A run of blocks needs a single seek
+  public synchronized void read(int block, int count, byte buf[], int off) throws IOException {
+    int total = count * blockSize;
+    fp.seek((long) block * blockSize);
+    int done = 0;
+    while(done < total) {
+      int n = fp.read(buf, off + done, total - done);
+      if(n < 0) {
+        // Past the end of the file
+        Arrays.fill(buf, off + done, off + total, (byte) 0);
+        break;
+      };
+      done += n;
+    };
+  };
+
+  // Heap buffers are read into directly
+  public void read(int block, int skip, ByteBuffer dst) throws IOException {
+    if(!dst.hasArray()) {
+      BlockDevice.super.read(block, skip, dst);
+      return;
+    };
+    synchronized(this) {
+      fp.seek((long) block * blockSize + skip);
+      int off = dst.arrayOffset() + dst.position();
+      int total = dst.remaining();
+      int done = 0;
+      while(done < total) {
+        int n = fp.read(dst.array(), off + done, total - done);
+        if(n < 0) {
+          // Past the end of the file
+          Arrays.fill(dst.array(), off + done, off + total, (byte) 0);
+          break;
+        };
+        done += n;
+      };
+      dst.position(dst.position() + total);
+    };
+  };
+
+  // Positional transfers leave the file pointer alone
+  public void transferTo(int block, int skip, int length, WritableByteChannel target) throws IOException {
+    BlockDevice.transfer(fp.getChannel(), (long) block * blockSize + skip, length, target);
+  };
+
+  public synchronized void write(int block, byte buf[], int off) throws IOException {
+    fp.seek((long) block * blockSize);
+    fp.write(buf, off, blockSize);
+  };
+
+  // Java cannot punch holes in a file, but blocks at the end of the
+  // image can be released by shortening the file
+  public synchronized boolean discard(int block, int count) throws IOException {
+    long from = (long) block * blockSize;
+    if(from >= fp.length()) {
+      return true;
+    };
+    if(from + (long) count * blockSize >= fp.length()) {
+      fp.setLength(from);
+      return true;
+    };
+    return false;
+  };
+
+  public void flush() throws IOException {
+    fp.getFD().sync();
+  };
+
+  public void close() throws IOException {
+    fp.close();
+  };
+};
@@ -0,0 +1,194 @@
+// Reference counts of the blocks shared between files (copy-on-write).
+//
+// The counts are kept next to the free block bitmap: the refBlocks pages
+// that follow the extra bitmap blocks (see Disk.refBlock()) hold one
+// unsigned short per disk block, the number of references to the block
+// beyond the first.  A block that is allocated in the bitmap and has a
+// count of 0 has a single owner, as every block did before sharing
+// existed; a count of n means n + 1 inode or indirect block pointers
+// refer to it.  Only the top of a shared tree is counted: the pointers of
+// a shared indirect block are shared with it, and are counted
+// individually when the indirect block is copied (see BlockMap).
+//
+// Like the bitmap, the pages are kept in memory and only the ones that
+// changed are written back, as journaled metadata.
+
+import java.util.*;
+import java.lang.*;
+import java.nio.*;
+import java.io.*;
+
+class RefCount {
+  static final int MAX = 0xffff;      // Largest count a page entry holds
+
+  private Disk disk;
+  private ByteBuffer pages[];         // Count pages
+  private boolean dirty[];            // Pages to write back
+  private int perPage;                // Counts per page
+
+  public RefCount(Disk dsk) {
+    disk = dsk;
+    perPage = disk.blockSize / 2;
+    pages = new ByteBuffer[disk.refBlocks];
+    for(int i = 0; i < pages.length; ++i) {
+      pages[i] = ByteBuffer.allocate(disk.blockSize);
+    };
+    dirty = new boolean[pages.length];
+  };
+
+  /**
+   * Read the count pages.
+   *
+   * throws FileSystemException if:
+   * 1. There is a read error
+   *
+   * @throws FileSystemException
+   */
+  public synchronized void read() throws FileSystemException {
+    try {
+      for(int i = 0; i < pages.length; ++i) {
+        disk.readBlock(disk.refBlock(i), pages[i].array());
+      };
+    }catch(IOException e) {
+      throw new FileSystemException("RefCount::read(): " + e);
+    };
+    Arrays.fill(dirty, false);
+  };
+
+  /**
+   * Initialize the counts of a freshly formatted disk: no block is shared.
+   *
+   * Effects:
+   * 1. All count pages are written
+   *
+   * throws FileSystemException if:
+   * 1. There is a write error
+   *
+   * @throws FileSystemException
+   */
+  public synchronized void format() throws FileSystemException {
+    for(ByteBuffer p: pages) {
+      Arrays.fill(p.array(), (byte) 0);
+    };
+    Arrays.fill(dirty, true);
+    flush();
+  };
+
+  /**
+   * Return = true if more than one pointer refers to block <block>
+   *
+   * @param block
+   * @return
+   */
+  public synchronized boolean shared(int block) {
+    return get(block) > 0;
+  };
+
+  /**
+   * Add a reference to block <block>.
+   *
+   * throws FileSystemException if:
+   * 1. The block already has the largest number of references
+   *
+   * @param block
+   * @throws FileSystemException
+   */
+  public synchronized void share(int block) throws FileSystemException {
+    int n = get(block);
+    if(n == MAX) {
+      throw new FileSystemException("Block " + block + " is shared too many times.");
+    };
+    set(block, n + 1);
+  };
+
+  /**
+   * Return = true if block <block> can take another reference
+   *
+   * @param block
+   * @return
+   */
+  public synchronized boolean canShare(int block) {
+    return get(block) < MAX;
+  };
+
+  /**
+   * Return = true if every block of <blocks> can take one more reference
+   *          per time it appears there
+   *
+   * @param blocks
+   * @return
+   */
+  public synchronized boolean canShare(int[] blocks) {
+    HashMap<Integer, Integer> added = new HashMap<Integer, Integer>();
+    for(int b: blocks) {
+      int n = added.merge(b, 1, Integer::sum);
+      if(get(b) + n > MAX) {
+        return false;
+      };
+    };
+    return true;
+  };
+
+  /**
+   * Drop a reference to block <block>.
+   *
+   * Return = true if other references remain (the block stays allocated)
+   *        = false if this was the only one (the caller frees the block)
+   *
+   * @param block
+   * @return
+   */
+  public synchronized boolean unshare(int block) {
+    int n = get(block);
+    if(n == 0) {
+      return false;
+    };
+    set(block, n - 1);
+    return true;
+  };
+
+  /**
+   * Write the count pages that changed since the last flush.
+   *
+   * throws FileSystemException if:
+   * 1. There is a write error
+   *
+   * @throws FileSystemException
+   */
+  public synchronized void flush() throws FileSystemException {
+    try {
+      for(int i = 0; i < pages.length; ++i) {
+        if(dirty[i]) {
+          disk.writeMetadata(disk.refBlock(i), pages[i].array());
+          dirty[i] = false;
+        };
+      };
+    }catch(IOException e) {
+      throw new FileSystemException("RefCount::write(): " + e);
+    };
+  };
+
+  /**
+   * Return = the number of shared blocks
+   *
+   * @return
+   */
+  public synchronized int numShared() {
+    int n = 0;
+    for(int b = 0; b < disk.numBlocks; ++b) {
+      if(get(b) > 0) {
+        n++;
+      };
+    };
+    return n;
+  };
+
+  private int get(int block) {
+    return pages[block / perPage].getShort(2 * (block % perPage)) & 0xffff;
+  };
+
+  private void set(int block, int n) {
+    pages[block / perPage].putShort(2 * (block % perPage), (short) n);
+    dirty[block / perPage] = true;
+  };
+};
@@ -23,6 +23,7 @@ public class UserInterface {
           str = br.readLine();
           if(str == null) {
             // Exit cleanly (useful when a file is the input)
+            sync(fs);
             System.exit(0);
           };
           //System.out.println(str);
@@ -43,6 +44,7 @@ public class UserInterface {
               System.out.println("b                          - show the free block status");
               System.out.println("c <fname>                  - create a file");
               System.out.println("cat <fname>                - show the contents of the file");
+              System.out.println("compress <fname> [off]     - store the file compressed (or plain again)");
               System.out.println("export <fname1> <fname2>   - copy from external file <fname1> to Disk <fnam2>");
               System.out.println("format                     - format the file system");
               System.out.println("import <fname1> <fname2>   - copy from Disk <fname1> to external file <fnam2>");
@@ -52,6 +54,8 @@ public class UserInterface {
               System.out.println("mv <fname1> <fname2>       - move a file");
               System.out.println("rm <fname>                 - remove a file");
               System.out.println("rmdir <name>               - remove a directory");
+              System.out.println("stats                      - show the cache, scrubber and dedup statistics");
+              System.out.println("sync                       - write cached blocks out to the disk");
               System.out.println("q                          - quit");
 
             }else if(args[0].equals("ls")) {
@@ -134,10 +138,35 @@ public class UserInterface {
             }else if(args[0].equals("b")) {
 
               // Display the free blocks
-              fs.free_block.display();
+              if(fs.disk.bitmapBlocks == 1) {
+                fs.free_block.display();
+              };
+              System.out.println(fs.free_block.stats());
+              System.out.println(fs.free_block.refs.numShared() + " blocks shared by copies");
+            }else if(args[0].equals("stats")) {
+
+              // Display the buffer cache statistics
+              if(fs.disk.cache != null) {
+                System.out.println(fs.disk.cache.stats());
+              }else {
+                System.out.println("cache: disabled");
+              };
+              System.out.println(fs.disk.pointers.stats());
+              System.out.println(fs.disk.chunks.stats());
+              System.out.println(fs.disk.dedup.stats());
+              System.out.println(fs.dentries.stats());
+              if(fs.disk.scrubber != null) {
+                System.out.println("scrubber: " + fs.disk.scrubber.scrubbed + " scrubbed, "
+                    + fs.disk.scrubber.skipped + " reused first, " + fs.disk.scrubber.backlog() + " waiting");
+              };
+            }else if(args[0].equals("sync")) {
+
+              // Write back the buffer cache
+              fs.sync();
             }else if(args[0].equals("q")) {
 
               // Quit
+              sync(fs);
               flag = false;
             }else if(args[0].equals("import")) {
 
@@ -159,6 +188,14 @@ public class UserInterface {
               }else {
                 System.out.println("Usage: export <fname1> [<fname2>]");
               }
+            }else if(args[0].equals("compress")) {
+
+              // Compress a file, or store it plain again
+              if(args.length == 2 || (args.length == 3 && args[2].equals("off"))) {
+                fs.setCompressed(args[1], args.length == 2);
+              }else {
+                System.out.println("Usage: compress <fname> [off]");
+              }
             }else if(args[0].equals("cp")) {
 
               // Copy a file
@@ -200,9 +237,71 @@ public class UserInterface {
     }catch(IOException e){System.out.println("ClientInteraction: IO error");};
   };
 
+  // Flush the disk before leaving
+  private static void sync(FileSystem fs) {
+    try {
+      fs.sync();
+    }catch(FileSystemException e) {
+      System.out.println(e);
+    };
+  };
+
   public static void main(String args[]) {
+    // Mount-time parameters of the disk
+    String kind = "raf";
+    String image = "Disk0";
+    int bs = 1024;
+    int nb = 256;
+    long cacheBytes = Disk.defaultCacheBytes;
+    int scrubRate = 0;
+    boolean dedup = false;
+
+    // Options: [-d mem|raf|channel|mmap] [-b blockSize] [-n numBlocks] [-c cacheKB] [-z scrubBlocksPerSec] [-D] [-m] [image]
+    try {
+      for(int i = 0; i < args.length; ++i) {
+        if(args[i].equals("-m")) {
+          kind = "mmap";
+        }else if(args[i].equals("-D")) {
+          dedup = true;
+        }else if(args[i].equals("-d") && i + 1 < args.length) {
+          kind = args[++i];
+        }else if(args[i].equals("-b") && i + 1 < args.length) {
+          bs = Integer.parseInt(args[++i]);
+        }else if(args[i].equals("-n") && i + 1 < args.length) {
+          nb = Integer.parseInt(args[++i]);
+        }else if(args[i].equals("-c") && i + 1 < args.length) {
+          cacheBytes = Long.parseLong(args[++i]) * 1024;
+        }else if(args[i].equals("-z") && i + 1 < args.length) {
+          scrubRate = Integer.parseInt(args[++i]);
+        }else{
+          image = args[i];
+        };
+      };
+    }catch(NumberFormatException e) {
+      System.out.println("Usage: [-d mem|raf|channel|mmap] [-b blockSize] [-n numBlocks] [-c cacheKB] [-z scrubBlocksPerSec] [-D] [-m] [image]");
+      System.exit(1);
+    };
+
     // Create the file system object
-    FileSystem fs = new FileSystem();
+    FileSystem fs = null;
+    try {
+      fs = new FileSystem(new Disk(Disk.openDevice(kind, image, bs, nb), cacheBytes));
+    }catch(IllegalArgumentException e) {
+      System.out.println("Disk(): " + e.getMessage());
+      System.exit(1);
+    }catch(UncheckedIOException e) {
+      System.out.println("Disk(): " + e.getCause());
+      System.exit(1);
+    }catch(FileSystemException e) {
+      System.out.println("FileSystem(): " + e);
+      System.exit(1);
+    };
+
+    // Erase freed blocks in the background if requested
+    if(scrubRate > 0) {
+      fs.startScrubber(scrubRate);
+    };
+    fs.setDedup(dedup);
 
     // Comment this back in if you want some additional debuggin information
     //fs.disk.debug_flag = true;